@@ -7,6 +7,7 @@ import org.apache.commons.cli.Options;
 import org.apache.commons.cli.ParseException;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.server.Server;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -30,40 +31,61 @@ public class Launcher {
         options.addOption("open", true, "-open DBPath");
         options.addOption("create", true, "-create DBPath");
         options.addOption("mem", true, "-mem 64MB");
+        options.addOption("pagecache", true, "-pagecache heap|mmap");
+        options.addOption("writeback", false, "-writeback");
+        options.addOption("asyncdelay", true, "-asyncdelay 10");
         CommandLineParser parser = new DefaultParser();
         CommandLine cmd = parser.parse(options,args);
 
         // 启动已有的数据库.
         if(cmd.hasOption("open")) {
-            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")));
+            openDB(cmd.getOptionValue("open"), parseMem(cmd.getOptionValue("mem")), parsePageCacheMode(cmd.getOptionValue("pagecache"), cmd.hasOption("writeback")), cmd.getOptionValue("asyncdelay"));
             return;
         }
 
         // 创建一个数据库.
         if(cmd.hasOption("create")) {
-            createDB(cmd.getOptionValue("create"));
+            createDB(cmd.getOptionValue("create"), parseMem(cmd.getOptionValue("mem")), parsePageCacheMode(cmd.getOptionValue("pagecache"), cmd.hasOption("writeback")));
             return;
         }
         System.out.println("Usage: launcher (open|create) DBPath");
     }
 
-    private static void createDB(String path) {
+    // dm.close()会做一次检查点,检查点里要把.xid文件落盘,所以先关dm再关tm
+    private static void createDB(String path, long mem, int pcMode) {
         TransactionManager tm = TransactionManager.create(path);
-        DataManager dm = DataManager.create(path, DEFALUT_MEM, tm);
+        DataManager dm = DataManager.create(path, mem, tm, pcMode);
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager.create(path, vm, dm);
-        tm.close();
         dm.close();
+        tm.close();
     }
 
-    private static void openDB(String path, long mem) {
+    // asyncDelay: 异步提交(begin ... async commit)的日志最多等多少毫秒落盘
+    private static void openDB(String path, long mem, int pcMode, String asyncDelay) {
         TransactionManager tm = TransactionManager.open(path);
-        DataManager dm = DataManager.open(path, mem, tm);
+        DataManager dm = DataManager.open(path, mem, tm, pcMode);
+        if(asyncDelay != null && !"".equals(asyncDelay)) {
+            dm.setAsyncCommitDelay(Long.parseLong(asyncDelay));
+        }
         VersionManager vm = new VersionManagerImpl(tm, dm);
         TableManager tbm = TableManager.open(path, vm, dm);
         new Server(port, tbm).start();
     }
 
+    // heap: 用FileChannel读写数据库文件(默认); mmap: 映射数据库文件,页面从映射拷进缓存,省掉读写的系统调用
+    // 两种模式下页面都缓存在堆上,大小由-mem决定
+    // writeBack: 脏页由后台线程批量写回
+    private static int parsePageCacheMode(String modeStr, boolean writeBack) {
+        int mode = PageCache.MODE_HEAP;
+        if("mmap".equals(modeStr)) {
+            mode = PageCache.MODE_MMAP;
+        } else if(modeStr != null && !"".equals(modeStr) && !"heap".equals(modeStr)) {
+            Panic.panic(Error.InvalidCommandException);
+        }
+        return writeBack ? mode | PageCache.WRITE_BACK : mode;
+    }
+
     private static long parseMem(String memStr) {
         if(memStr == null || "".equals(memStr)) {
             return DEFALUT_MEM;
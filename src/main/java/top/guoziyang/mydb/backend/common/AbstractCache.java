@@ -1,111 +1,233 @@
 package top.guoziyang.mydb.backend.common;
 
-import java.util.HashMap;
-import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+import java.util.function.LongPredicate;
 
 import top.guoziyang.mydb.common.Error;
 
 /**
  * AbstractCache 实现了一个引用计数策略的缓存
  * @tparam T 缓存的对象类型
- * 我们的缓存数据结构包括三个哈希表:
+ * 我们的缓存数据结构包括三个哈希表,都是以long为键的开放寻址表(LongObjectMap/LongLongMap),get/release不需要装箱:
  * 1. cache: 存储实际的缓存数据，键是资源的唯一标识符，值是缓存的对象
  * 2. references: 存储每个资源的引用计数，键是资源的唯一标识符，值是该资源的引用个数
- * 3. getting: 存储正在被获取的资源，键是资源的唯一标识符，值是一个布尔值，表示该资源正在被获取
+ * 3. getting: 存储正在被获取的资源，键是资源的唯一标识符，值是该资源加载完成的future
+ *    同时请求该资源的线程会先计入引用计数,然后阻塞在future上,加载成功拿到同一个对象,加载失败抛出同一个异常
  * 缓存的主要操作包括:
  * 1. get(key): 获取一个缓存资源，如果资源在缓存中，直接返回并增加引用计数；如果资源不在缓存中，调用子类实现的获取方法获取资源，并将其加入缓存，引用计数设为1
  * 2. release(key): 释放一个缓存资源，引用计数减1，如果引用计数为0，则将资源写回并从缓存中移除
  * 3. close(): 关闭缓存，写回所有资源并清空缓存
  *
+ *
+ * 常驻模式(keepResident):
+ * 引用计数降为0时并不立刻驱逐资源,而是在references里打上CLOCK_REFERENCED标记,资源继续留在缓存中
+ * 直到缓存已满、又有新的资源需要加载时,才用CLOCK算法驱逐一个无人引用的资源:
+ * 指针扫过references的槽位,带标记的清掉标记给第二次机会,没有标记的就被驱逐
+ * 驱逐时同样调用releaseForCache,页面缓存只会在这里写回脏页
+ *
+ * 分段(segments):
+ * 上面这些哈希表按key的哈希分散到若干个Segment中,每个Segment有自己的锁,不同段上的get/release互不阻塞
+ * 缓存的总容量用一个全局的原子计数器count来约束,段数为1时就退化成原来的单锁缓存
+ *
  * 以后如果要实现具体的缓存，只需要继承AbstractCache类，并实现getForCache和releaseForCache方法即可
  * 这样就可以实现不同类型的缓存，例如页面缓存、记录缓存等
  */
 public abstract class AbstractCache<T> {
-    private HashMap<Long, T> cache;                     // 实际缓存的数据
-    private HashMap<Long, Integer> references;          // 元素的引用个数
-    private HashMap<Long, Boolean> getting;             // 正在获取某资源的线程
+    // 需要分段的缓存默认使用的段数
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    // 常驻资源引用计数降为0时的取值,表示它最近被用过,CLOCK扫到时先给一次机会
+    private static final long CLOCK_REFERENCED = -1;
+
+    // 一个段,持有一部分key对应的缓存数据,由段自己的锁保护
+    private class Segment {
+        LongObjectMap<T> cache = new LongObjectMap<>();                         // 实际缓存的数据
+        LongLongMap references = new LongLongMap();                             // 元素的引用个数
+        LongObjectMap<CompletableFuture<T>> getting = new LongObjectMap<>();    // 正在获取的资源,等待者挂在对应的future上
+        int unpinned;                                                           // 常驻模式下引用计数为0的资源个数
+        int hand;                                                               // CLOCK指针,指向references的槽位
+        Lock lock = new ReentrantLock();
+    }
+
+    private Segment[] segments;
+    private int segmentMask;
 
     private int maxResource;                            // 缓存的最大缓存资源数
-    private int count = 0;                              // 缓存中元素的个数
-    private Lock lock;
+    private AtomicInteger count;                        // 缓存中元素的个数,所有段共享
+    private boolean keepResident;                       // 引用计数为0时是否继续常驻
 
     public AbstractCache(int maxResource) {
+        this(maxResource, false);
+    }
+
+    public AbstractCache(int maxResource, boolean keepResident) {
+        this(maxResource, keepResident, 1);
+    }
+
+    /**
+     * @param maxResource 缓存的最大资源数,0表示不限制
+     * @param keepResident 引用计数为0时是否继续常驻
+     * @param segmentCount 段数,会向上取整到2的幂
+     */
+    public AbstractCache(int maxResource, boolean keepResident, int segmentCount) {
         this.maxResource = maxResource;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashMap<>();
-        lock = new ReentrantLock();
+        this.keepResident = keepResident;
+        this.count = new AtomicInteger(0);
+        int n = 1;
+        while(n < segmentCount) {
+            n <<= 1;
+        }
+        @SuppressWarnings("unchecked")
+        Segment[] segs = (Segment[])new AbstractCache<?>.Segment[n];
+        segments = segs;
+        for(int i = 0; i < n; i ++) {
+            segments[i] = new Segment();
+        }
+        segmentMask = n - 1;
+    }
+
+    // 根据key的哈希选择段,先把高位混进低位,避免连续的pgno或uid挤在同一个段
+    private Segment segmentFor(long key) {
+        long h = key ^ (key >>> 32);
+        h ^= (h >>> 16);
+        return segments[(int)h & segmentMask];
     }
 
     // 获取一个缓存,引用计数加1
     protected T get(long key) throws Exception {
+        Segment seg = segmentFor(key);
+        CompletableFuture<T> loading;
         while(true) {
-            lock.lock();
+            seg.lock.lock();
             // 检查是否有其他线程正在获取该资源
-            if(getting.containsKey(key)) {
-                // 请求的资源正在被其他线程获取,等待
-                lock.unlock();
-                try {
-                    // 已经有thread在获取该资源,所以先休息一下(1s)，避免忙等待
-                    Thread.sleep(1);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    continue;
-                }
-                continue;
+            loading = seg.getting.get(key);
+            if(loading != null) {
+                // 请求的资源正在被其他线程获取,先替自己占一个引用,再挂起等待加载结果
+                seg.references.put(key, seg.references.getOrDefault(key, 0) + 1);
+                seg.lock.unlock();
+                return await(loading);
             }
 
-            if(cache.containsKey(key)) {
+            if(seg.cache.containsKey(key)) {
                 // 资源在缓存中，直接返回
-                T obj = cache.get(key);
+                T obj = seg.cache.get(key);
+                long ref = seg.references.getOrDefault(key, 0);
+                if(ref <= 0) {
+                    // 常驻的资源重新被引用,不再参与驱逐
+                    seg.unpinned --;
+                    ref = 0;
+                }
                 // 引用计数加1
-                references.put(key, references.get(key) + 1);
-                lock.unlock();
+                seg.references.put(key, ref + 1);
+                seg.lock.unlock();
                 return obj;
             }
 
-            // 尝试获取该资源
-            if(maxResource > 0 && count == maxResource) {
-                lock.unlock();
+            // 尝试为该资源占一个名额
+            if(reserve(seg)) {
+                break;
+            }
+            // 本段没有可以驱逐的资源,放开本段的锁再去其他段驱逐,之后重新检查
+            seg.lock.unlock();
+            if(!evictOther(seg)) {
                 // 缓存已满，抛出异常
                 throw Error.CacheFullException;
             }
-
-            count ++;
-            // 这表明资源正在被获取
-            getting.put(key, true);
-            lock.unlock();
-            break;
         }
 
+        // 登记一个加载中的future,之后请求同一资源的线程都在它上面等待
+        loading = new CompletableFuture<>();
+        seg.getting.put(key, loading);
+        seg.references.put(key, 1);
+        seg.lock.unlock();
+
         // 资源不在缓存中，调用子类实现的获取方法获取资源
         T obj = null;
         try {
             // 这里相当于sql从磁盘加载数据到内存
             obj = getForCache(key);
         } catch(Exception e) {
-            lock.lock();
-            count --;
-            // 资源获取失败，移除正在获取的标记
-            getting.remove(key);
-            lock.unlock();
+            seg.lock.lock();
+            count.decrementAndGet();
+            // 资源获取失败，移除正在获取的标记和等待者占的引用
+            seg.getting.remove(key);
+            seg.references.remove(key);
+            seg.lock.unlock();
+            // 唤醒所有等待者,让它们抛出同一个异常
+            loading.completeExceptionally(e);
             throw e;
         }
 
-        lock.lock();
-        // 资源获取成功，加入缓存，引用计数设为1
-        getting.remove(key);
+        seg.lock.lock();
+        // 资源获取成功，加入缓存，引用计数已经包含了所有等待者
+        seg.getting.remove(key);
         // 把这个新获取的资源放入缓存
-        cache.put(key, obj);
-        // 该资源的引用计数设为1
-        references.put(key, 1);
-        lock.unlock();
-        
+        seg.cache.put(key, obj);
+        seg.lock.unlock();
+        // 唤醒所有等待者,它们拿到的是同一个对象
+        loading.complete(obj);
+
         return obj;
     }
 
+    // 等待其他线程的加载结果,加载失败时抛出加载线程遇到的那个异常
+    private T await(CompletableFuture<T> loading) throws Exception {
+        try {
+            return loading.join();
+        } catch(CompletionException e) {
+            throw (Exception)e.getCause();
+        }
+    }
+
+    /**
+     * 为即将加载的资源占一个名额,调用时必须持有seg的锁
+     * 缓存已满时只会驱逐本段的常驻资源
+     * @return 是否占到了名额
+     */
+    private boolean reserve(Segment seg) {
+        if(maxResource <= 0) {
+            count.incrementAndGet();
+            return true;
+        }
+        while(true) {
+            int c = count.get();
+            if(c < maxResource) {
+                if(count.compareAndSet(c, c + 1)) {
+                    return true;
+                }
+            } else if(!evictOne(seg)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * 依次锁住其他段尝试驱逐一个常驻资源,调用时不能持有任何段的锁,同一时刻只持有一把段锁
+     * @return 是否值得重新尝试占名额
+     */
+    private boolean evictOther(Segment seg) {
+        for(Segment other : segments) {
+            if(other == seg) {
+                continue;
+            }
+            other.lock.lock();
+            try {
+                if(evictOne(other)) {
+                    return true;
+                }
+            } finally {
+                other.lock.unlock();
+            }
+        }
+        // 期间可能有其他线程释放了名额,这种情况也值得重试一次
+        return count.get() < maxResource;
+    }
+
     /**
      * 强行释放一个缓存
      * 引用计数减1，若引用计数为0，则将资源写回并从缓存中移除
@@ -113,28 +235,157 @@ public abstract class AbstractCache<T> {
      * @param key 资源的唯一标识符
      */
     protected void release(long key) {
-        lock.lock();
+        Segment seg = segmentFor(key);
+        seg.lock.lock();
         try {
             // 引用计数减1
-            int ref = references.get(key) - 1;
-            // 若引用计数为0，则将资源写回并从缓存中移除
-            if(ref == 0) {
-                T obj = cache.get(key);
+            long ref = seg.references.getOrDefault(key, 0) - 1;
+            if(ref == 0 && keepResident) {
+                // 常驻模式下只是打上最近使用的标记,等到内存不足时再由CLOCK驱逐
+                seg.references.put(key, CLOCK_REFERENCED);
+                seg.unpinned ++;
+            } else if(ref == 0) {
+                // 若引用计数为0，则将资源写回并从缓存中移除
+                T obj = seg.cache.get(key);
                 // 调用子类实现的写回方法
                 releaseForCache(obj);
                 // 释放该资源
-                references.remove(key);
+                seg.references.remove(key);
                 // 从缓存中移除该资源
-                cache.remove(key);
+                seg.cache.remove(key);
                 // 缓存中元素个数减1
-                count --;
+                count.decrementAndGet();
             } else {
                 // 更新引用计数
-                references.put(key, ref);
+                seg.references.put(key, ref);
             }
         } finally {
             // 释放锁
-            lock.unlock();
+            seg.lock.unlock();
+        }
+    }
+
+    /**
+     * 用CLOCK算法驱逐段内一个无人引用的资源,调用时必须持有该段的锁
+     * @return 是否成功腾出了一个位置
+     */
+    private boolean evictOne(Segment seg) {
+        if(seg.unpinned == 0) {
+            return false;
+        }
+        // 最多扫两圈: 第一圈清掉所有标记,第二圈一定能找到没有标记的资源
+        for(int step = 2 * seg.references.capacity(); step > 0; step --) {
+            if(seg.hand >= seg.references.capacity()) {
+                seg.hand = 0;
+            }
+            int i = seg.hand;
+            if(seg.references.isUsed(i)) {
+                long ref = seg.references.valueAt(i);
+                if(ref == CLOCK_REFERENCED) {
+                    seg.references.setValueAt(i, 0);
+                } else if(ref == 0) {
+                    long key = seg.references.keyAt(i);
+                    // 删除之后后面的元素可能被挪到槽位i,所以指针停在原地
+                    seg.references.remove(key);
+                    T obj = seg.cache.remove(key);
+                    seg.unpinned --;
+                    releaseForCache(obj);
+                    count.decrementAndGet();
+                    return true;
+                }
+            }
+            seg.hand ++;
+        }
+        return false;
+    }
+
+    /**
+     * 对所有常驻且没有被引用的资源调用action,用于后台写回这类维护工作
+     * 调用action时持有资源所在段的锁,期间其他线程不能重新引用它,也不能把它驱逐
+     * action里不能再访问本缓存
+     */
+    protected void forEachUnpinned(Consumer<T> action) {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                if(seg.unpinned == 0) {
+                    continue;
+                }
+                for(int i = 0; i < seg.references.capacity(); i ++) {
+                    if(seg.references.isUsed(i) && seg.references.valueAt(i) <= 0) {
+                        action.accept(seg.cache.get(seg.references.keyAt(i)));
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 对所有正在被引用的资源调用action,调用时持有资源所在段的锁,期间它不会被释放和驱逐
+     * action里不能再访问本缓存
+     */
+    protected void forEachPinned(Consumer<T> action) {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for(int i = 0; i < seg.references.capacity(); i ++) {
+                    if(seg.references.isUsed(i) && seg.references.valueAt(i) > 0) {
+                        action.accept(seg.cache.get(seg.references.keyAt(i)));
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 把key满足条件、没有被引用的资源直接移出缓存,不调用releaseForCache写回,而是交给dropped
+     * 用于资源已经不存在的情况,比如文件截断之后的页面;被引用的资源不受影响
+     */
+    protected void discardIf(LongPredicate filter, Consumer<T> dropped) {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                // 删除会挪动后面的元素,先收集再删
+                LongList keys = new LongList();
+                for(int i = 0; i < seg.references.capacity(); i ++) {
+                    if(seg.references.isUsed(i) && seg.references.valueAt(i) <= 0 && filter.test(seg.references.keyAt(i))) {
+                        keys.add(seg.references.keyAt(i));
+                    }
+                }
+                for(int i = 0; i < keys.size(); i ++) {
+                    long key = keys.get(i);
+                    seg.references.remove(key);
+                    T obj = seg.cache.remove(key);
+                    seg.unpinned --;
+                    count.decrementAndGet();
+                    dropped.accept(obj);
+                }
+            } finally {
+                seg.lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * 对缓存中的所有资源调用action,不论是否被引用,调用时持有资源所在段的锁
+     * action里不能再访问本缓存
+     */
+    protected void forEachCached(Consumer<T> action) {
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                for(int i = 0; i < seg.cache.capacity(); i ++) {
+                    if(seg.cache.isUsed(i)) {
+                        action.accept(seg.cache.valueAt(i));
+                    }
+                }
+            } finally {
+                seg.lock.unlock();
+            }
         }
     }
 
@@ -143,18 +394,22 @@ public abstract class AbstractCache<T> {
      * 我们把缓存中的所有资源都写回磁盘，并清空缓存
      */
     protected void close() {
-        lock.lock();
-        try {
-            Set<Long> keys = cache.keySet();
-            // 遍历所有缓存的资源
-            for (long key : keys) {
-                T obj = cache.get(key);
-                releaseForCache(obj);
-                references.remove(key);
-                cache.remove(key);
+        for(Segment seg : segments) {
+            seg.lock.lock();
+            try {
+                // 遍历所有缓存的资源
+                for(int i = 0; i < seg.cache.capacity(); i ++) {
+                    if(seg.cache.isUsed(i)) {
+                        releaseForCache(seg.cache.valueAt(i));
+                        seg.references.remove(seg.cache.keyAt(i));
+                        count.decrementAndGet();
+                    }
+                }
+                seg.cache.clear();
+                seg.unpinned = 0;
+            } finally {
+                seg.lock.unlock();
             }
-        } finally {
-            lock.unlock();
         }
     }
 
@@ -0,0 +1,96 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 元素是long的可变长数组,代替List<Long>,增删元素不装箱
+ * 非线程安全,由使用者自己加锁
+ */
+public class LongList {
+    private long[] elems;
+    private int size;
+
+    public LongList() {
+        this(8);
+    }
+
+    public LongList(int capacity) {
+        elems = new long[Math.max(capacity, 1)];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long get(int index) {
+        if(index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        return elems[index];
+    }
+
+    public void add(long e) {
+        add(size, e);
+    }
+
+    // 在index处插入e,后面的元素整体后移
+    public void add(int index, long e) {
+        if(index > size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        if(size == elems.length) {
+            elems = Arrays.copyOf(elems, elems.length << 1);
+        }
+        System.arraycopy(elems, index, elems, index + 1, size - index);
+        elems[index] = e;
+        size ++;
+    }
+
+    // 删除index处的元素并返回它
+    public long removeAt(int index) {
+        long e = get(index);
+        System.arraycopy(elems, index + 1, elems, index, size - index - 1);
+        size --;
+        return e;
+    }
+
+    // 删除第一个等于e的元素
+    public boolean removeValue(long e) {
+        int i = indexOf(e);
+        if(i < 0) {
+            return false;
+        }
+        removeAt(i);
+        return true;
+    }
+
+    public int indexOf(long e) {
+        for(int i = 0; i < size; i ++) {
+            if(elems[i] == e) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    // 元素按升序排列时二分查找,返回值同Arrays.binarySearch
+    public int binarySearch(long e) {
+        return Arrays.binarySearch(elems, 0, size, e);
+    }
+
+    public boolean contains(long e) {
+        return indexOf(e) >= 0;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+
+    public long[] toArray() {
+        return Arrays.copyOf(elems, size);
+    }
+}
@@ -0,0 +1,148 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 键和值都是long的开放寻址哈希表,结构和LongObjectMap相同
+ * 用来存放引用计数、uid到xid的映射这类数值,更新时不会分配任何对象
+ * 非线程安全,由使用者自己加锁
+ */
+public class LongLongMap {
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    public LongLongMap() {
+        this(16);
+    }
+
+    public LongLongMap(int expected) {
+        int cap = 16;
+        while(cap < expected * 2) {
+            cap <<= 1;
+        }
+        alloc(cap);
+    }
+
+    private void alloc(int cap) {
+        keys = new long[cap];
+        values = new long[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+    }
+
+    // 返回key所在的槽位,不存在时返回-1
+    private int indexOf(long key) {
+        int i = LongObjectMap.hash(key) & mask;
+        while(used[i]) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    public long getOrDefault(long key, long defaultValue) {
+        int i = indexOf(key);
+        return i < 0 ? defaultValue : values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    public void put(long key, long value) {
+        int i = LongObjectMap.hash(key) & mask;
+        while(used[i]) {
+            if(keys[i] == key) {
+                values[i] = value;
+                return;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        if(++ size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+    }
+
+    public boolean remove(long key) {
+        int gap = indexOf(key);
+        if(gap < 0) {
+            return false;
+        }
+        int j = gap;
+        while(true) {
+            j = (j + 1) & mask;
+            if(!used[j]) {
+                break;
+            }
+            int home = LongObjectMap.hash(keys[j]) & mask;
+            boolean stay = gap <= j ? (gap < home && home <= j) : (gap < home || home <= j);
+            if(!stay) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+        size --;
+        return true;
+    }
+
+    private void rehash(int cap) {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        alloc(cap);
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldUsed[i]) {
+                int j = LongObjectMap.hash(oldKeys[i]) & mask;
+                while(used[j]) {
+                    j = (j + 1) & mask;
+                }
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        size = 0;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    public long valueAt(int slot) {
+        return values[slot];
+    }
+
+    public void setValueAt(int slot, long value) {
+        values[slot] = value;
+    }
+}
@@ -0,0 +1,167 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 以long为键的开放寻址哈希表,线性探测
+ * 与HashMap<Long, V>相比,查找和更新都不需要装箱,也没有Entry对象
+ * 删除时把后面的元素往前挪(backward shift),所以表里没有墓碑
+ * 非线程安全,由使用者自己加锁
+ *
+ * 需要遍历时,按槽位从0到capacity()-1,用isUsed/keyAt/valueAt访问
+ */
+public class LongObjectMap<V> {
+    private long[] keys;
+    private Object[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    public LongObjectMap() {
+        this(16);
+    }
+
+    public LongObjectMap(int expected) {
+        int cap = 16;
+        while(cap < expected * 2) {
+            cap <<= 1;
+        }
+        alloc(cap);
+    }
+
+    private void alloc(int cap) {
+        keys = new long[cap];
+        values = new Object[cap];
+        used = new boolean[cap];
+        mask = cap - 1;
+    }
+
+    static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int)(h ^ (h >>> 32));
+    }
+
+    // 返回key所在的槽位,不存在时返回-1
+    private int indexOf(long key) {
+        int i = hash(key) & mask;
+        while(used[i]) {
+            if(keys[i] == key) {
+                return i;
+            }
+            i = (i + 1) & mask;
+        }
+        return -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        int i = indexOf(key);
+        return i < 0 ? null : (V)values[i];
+    }
+
+    public boolean containsKey(long key) {
+        return indexOf(key) >= 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        int i = hash(key) & mask;
+        while(used[i]) {
+            if(keys[i] == key) {
+                V old = (V)values[i];
+                values[i] = value;
+                return old;
+            }
+            i = (i + 1) & mask;
+        }
+        used[i] = true;
+        keys[i] = key;
+        values[i] = value;
+        if(++ size * 2 > keys.length) {
+            rehash(keys.length << 1);
+        }
+        return null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        int i = indexOf(key);
+        if(i < 0) {
+            return null;
+        }
+        V old = (V)values[i];
+        shiftDelete(i);
+        size --;
+        return old;
+    }
+
+    // 删除槽位gap上的元素,并把探测链上后续的元素挪回来填补空位
+    private void shiftDelete(int gap) {
+        int j = gap;
+        while(true) {
+            j = (j + 1) & mask;
+            if(!used[j]) {
+                break;
+            }
+            int home = hash(keys[j]) & mask;
+            // home不在(gap, j]这个循环区间里时,j上的元素可以挪到gap
+            boolean stay = gap <= j ? (gap < home && home <= j) : (gap < home || home <= j);
+            if(!stay) {
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        used[gap] = false;
+        values[gap] = null;
+    }
+
+    private void rehash(int cap) {
+        long[] oldKeys = keys;
+        Object[] oldValues = values;
+        boolean[] oldUsed = used;
+        alloc(cap);
+        for(int i = 0; i < oldKeys.length; i ++) {
+            if(oldUsed[i]) {
+                int j = hash(oldKeys[i]) & mask;
+                while(used[j]) {
+                    j = (j + 1) & mask;
+                }
+                used[j] = true;
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(used, false);
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    public int capacity() {
+        return keys.length;
+    }
+
+    public boolean isUsed(int slot) {
+        return used[slot];
+    }
+
+    public long keyAt(int slot) {
+        return keys[slot];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V valueAt(int slot) {
+        return (V)values[slot];
+    }
+}
@@ -5,25 +5,48 @@ import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.utils.Panic;
+import top.guoziyang.mydb.common.Error;
 
 // DM给上层提供的接口.
 public interface DataManager {
     // DM只用提供read 和 insert 方法,update是利用di来进行更改的
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+    // 提交事务: 写commit日志并落盘,然后修改事务状态
+    void commit(long xid);
+    // 异步提交: commit日志写进日志缓冲区就返回,崩溃时可能丢掉最近一小段时间内的提交,但不会只恢复一半
+    void commitAsync(long xid);
+    // 异步提交的日志最多等待多久落盘,单位毫秒
+    void setAsyncCommitDelay(long millis);
+    // 回滚事务: 写abort日志,不需要落盘,然后修改事务状态
+    void abort(long xid);
     void close();
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.create(path, mem);
+        return create(path, mem, tm, PageCache.MODE_HEAP);
+    }
+
+    // pcMode是页面缓存的模式,见PageCache.MODE_*
+    public static DataManager create(String path, long mem, TransactionManager tm, int pcMode) {
+        checkPageCacheMode(pcMode);
+        PageCache pc = PageCache.create(path, mem, pcMode);
         Logger lg = Logger.create(path);
 
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         dm.initPageOne();
+        dm.startCheckpointer();
+        dm.startLogFlusher();
         return dm;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pc = PageCache.open(path, mem);
+        return open(path, mem, tm, PageCache.MODE_HEAP);
+    }
+
+    public static DataManager open(String path, long mem, TransactionManager tm, int pcMode) {
+        checkPageCacheMode(pcMode);
+        PageCache pc = PageCache.open(path, mem, pcMode);
         Logger lg = Logger.open(path);
         DataManagerImpl dm = new DataManagerImpl(pc, lg, tm);
         if(!dm.loadCheckPageOne()) {
@@ -32,7 +55,16 @@ public interface DataManager {
         dm.fillPageIndex();
         PageOne.setVcOpen(dm.pageOne);
         dm.pc.flushPage(dm.pageOne);
+        dm.startCheckpointer();
+        dm.startLogFlusher();
 
         return dm;
     }
+
+    // DataItem直接引用Page.getData()返回的堆数组,堆外页面没有堆数组,MODE_DIRECT的页面缓存暂时不能用于DM
+    private static void checkPageCacheMode(int pcMode) {
+        if((pcMode & ~PageCache.WRITE_BACK) == PageCache.MODE_DIRECT) {
+            Panic.panic(Error.UnsupportedPageCacheModeException);
+        }
+    }
 }
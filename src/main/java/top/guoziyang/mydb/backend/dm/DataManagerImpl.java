@@ -1,6 +1,15 @@
 package top.guoziyang.mydb.backend.dm;
 
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.LongLongMap;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItemImpl;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
@@ -11,24 +20,57 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageIndex;
 import top.guoziyang.mydb.backend.dm.pageIndex.PageInfo;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Types;
 import top.guoziyang.mydb.common.Error;
 
 public class DataManagerImpl extends AbstractCache<DataItem> implements DataManager {
 
+    // fillPageIndex时提前预读的页数
+    private static final int PREFETCH_AHEAD = 8;
+    // 检查点线程每秒看一次,日志增长超过CKPT_LOG_BYTES,或者距上次检查点超过CKPT_INTERVAL且有新日志,就做一次检查点
+    private static final long CKPT_TICK = 1000;
+    private static final long CKPT_LOG_BYTES = 32L << 20;
+    private static final long CKPT_INTERVAL = 60 * 1000;
+    // 异步提交的日志默认最多等这么久落盘
+    private static final long ASYNC_COMMIT_DELAY = 10;
+
     TransactionManager tm;
     PageCache pc;
     Logger logger;
     PageIndex pIndex;
     Page pageOne;
+    // 每个事务最后一条日志的LSN,提交时日志只需要落盘到这里
+    private LongLongMap lastLsn;
+    // 活跃事务表: 每个事务第一条日志的LSN,undo需要从这里读起,不含SUPER_XID
+    private LongLongMap firstLsn;
+    private Lock lsnLock;
+    // 修改页面、写日志并设置页面LSN时持有读锁,检查点写回被引用的页面、取日志末尾和脏页表时持有写锁,保证两者一致
+    private ReadWriteLock ckptLock;
+    private Lock ckptRunLock;           // 同一时刻只做一个检查点
+    private long lastCkptLsn;
+    private Thread checkpointer;
+    private volatile boolean closed;
+    // 异步提交的最大commit日志LSN,后台线程定时把日志落盘到这里
+    private AtomicLong asyncLsn;
+    private volatile long asyncCommitDelay = ASYNC_COMMIT_DELAY;
+    private Thread logFlusher;
 
     public DataManagerImpl(PageCache pc, Logger logger, TransactionManager tm) {
-        super(0);
+        super(0, false, DEFAULT_SEGMENTS);
         this.pc = pc;
         this.logger = logger;
         this.tm = tm;
         this.pIndex = new PageIndex();
+        this.lastLsn = new LongLongMap();
+        this.firstLsn = new LongLongMap();
+        this.lsnLock = new ReentrantLock();
+        this.ckptLock = new ReentrantReadWriteLock();
+        this.ckptRunLock = new ReentrantLock();
+        this.asyncLsn = new AtomicLong();
+        // 页面写回之前,修改它的日志要先落盘
+        pc.setLogFlusher(logger::flush);
     }
 
     @Override
@@ -78,11 +120,17 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             // 取出page
             pg = pc.getPage(pi.pgno);
             // 先写日志 WAL原则
-            byte[] log = Recover.insertLog(xid, pg, raw);
-            logger.log(log);
-
-            // 记录偏移量
-            short offset = PageX.insert(pg, raw);
+            short offset;
+            ckptLock.readLock().lock();
+            try {
+                long lsn = logger.log(Recover.insertRecord(xid, pg, raw));
+                setLsn(pg, lsn);
+                noteLsn(xid, lsn);
+                // 记录偏移量
+                offset = PageX.insert(pg, raw);
+            } finally {
+                ckptLock.readLock().unlock();
+            }
 
             pg.release();
             return Types.addressToUid(pi.pgno, offset);
@@ -101,18 +149,277 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public void close() {
+        closed = true;
+        stopThread(checkpointer);
+        stopThread(logFlusher);
         super.close();
+        // 关闭前做一次检查点,之前的日志段都可以回收
+        checkpoint();
         logger.close();
+        // 先让其他脏页都落盘,再写关闭的vc,否则vc先落盘而数据页没有,下次打开就不会恢复
+        pc.sync();
         // close的时候,要更新一下vc,防止下次打开时校验失败
         PageOne.setVcClose(pageOne);
         pageOne.release();
         pc.close();
     }
 
+    /**
+     * 模拟崩溃,只给测试使用: 停掉后台线程,释放文件,不做检查点,页面缓存里的脏页全部丢掉
+     * 日志照常关闭,缓冲区里的日志会落盘,多落盘一段日志也是一种合法的崩溃状态
+     */
+    void crash() {
+        closed = true;
+        stopThread(checkpointer);
+        stopThread(logFlusher);
+        logger.close();
+        pc.crash();
+    }
+
     // 为xid生成update日志
     public void logDataItem(long xid, DataItem di) {
-        byte[] log = Recover.updateLog(xid, di);
-        logger.log(log);
+        ckptLock.readLock().lock();
+        try {
+            long lsn = logger.log(Recover.updateRecord(xid, di));
+            setLsn(di.page(), lsn);
+            noteLsn(xid, lsn);
+        } finally {
+            ckptLock.readLock().unlock();
+        }
+    }
+
+    // 为xid生成move日志,见DataItem.afterMove
+    public void logDataItemMove(long xid, DataItem di, int from, int to, int len) {
+        if(xid != TransactionManagerImpl.SUPER_XID) {
+            logDataItem(xid, di);
+            return;
+        }
+        ckptLock.readLock().lock();
+        try {
+            long lsn = logger.log(Recover.moveRecord(xid, di, from, to, len));
+            setLsn(di.page(), lsn);
+            noteLsn(xid, lsn);
+        } finally {
+            ckptLock.readLock().unlock();
+        }
+    }
+
+    // DataItem从before到after/unBefore期间持有,读锁可重入,修改过程中插入新数据(比如B+树分裂)也没问题
+    public void lockForUpdate() {
+        ckptLock.readLock().lock();
+    }
+
+    public void unlockForUpdate() {
+        ckptLock.readLock().unlock();
+    }
+
+    // 内存里的LSN用于WAL和脏页表,页面里的PageLSN随页面落盘,恢复时判断日志是否已经在页面里
+    private void setLsn(Page pg, long lsn) {
+        pg.setLsn(lsn);
+        PageX.setPageLsn(pg, lsn);
+    }
+
+    /**
+     * 做一次检查点:
+     * 1. 持有写锁把被引用的脏页写回,再把其他脏页写回并刷盘,缩小脏页表
+     * 2. 持有写锁取日志末尾、脏页表和活跃事务表,写一条检查点日志并落盘
+     * 3. XID文件落盘,再把检查点日志的LSN记到第一页,恢复时从这里找到检查点
+     * 4. 恢复用不到的日志段全部回收
+     */
+    void checkpoint() {
+        ckptRunLock.lock();
+        try {
+            // 被引用的页面不会被sync写回,写锁保证没有修改进行到一半
+            ckptLock.writeLock().lock();
+            try {
+                pc.writePinned();
+            } finally {
+                ckptLock.writeLock().unlock();
+            }
+            pc.sync();
+            long begin;
+            int pageCount;
+            LongLongMap dirtyPages;
+            LongLongMap activeXids;
+            ckptLock.writeLock().lock();
+            try {
+                begin = logger.tailLsn();
+                pageCount = pc.getPageNumber();
+                dirtyPages = pc.dirtyPageTable();
+                lsnLock.lock();
+                try {
+                    activeXids = new LongLongMap(firstLsn.size());
+                    for(int i = 0; i < firstLsn.capacity(); i ++) {
+                        if(firstLsn.isUsed(i)) {
+                            activeXids.put(firstLsn.keyAt(i), firstLsn.valueAt(i));
+                        }
+                    }
+                } finally {
+                    lsnLock.unlock();
+                }
+            } finally {
+                ckptLock.writeLock().unlock();
+            }
+            byte[] log = Recover.checkpointLog(begin, pageCount, dirtyPages, activeXids);
+            long lsn = logger.log(log);
+            logger.flush(lsn);
+            // 恢复会从新检查点开始,跳过之前的commit/abort日志,所以XID文件必须在记下检查点之前落盘,事务状态才不会丢
+            tm.sync();
+            PageOne.setCheckpoint(pageOne, lsn);
+            pc.flushPage(pageOne);
+            long start = Math.min(begin, Recover.startOf(dirtyPages, activeXids));
+            logger.truncateBefore(start);
+            lastCkptLsn = lsn;
+        } finally {
+            ckptRunLock.unlock();
+        }
+    }
+
+    // 启动后台检查点线程
+    void startCheckpointer() {
+        lastCkptLsn = logger.tailLsn();
+        checkpointer = new Thread(this::checkpointLoop, "checkpointer");
+        checkpointer.setDaemon(true);
+        checkpointer.start();
+    }
+
+    // 启动异步提交的日志落盘线程
+    void startLogFlusher() {
+        logFlusher = new Thread(this::logFlusherLoop, "log-flusher");
+        logFlusher.setDaemon(true);
+        logFlusher.start();
+    }
+
+    private void logFlusherLoop() {
+        while(!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(asyncCommitDelay));
+            if(closed) {
+                return;
+            }
+            long lsn = asyncLsn.get();
+            if(lsn > 0) {
+                logger.flush(lsn);
+            }
+        }
+    }
+
+    // 后台线程可能正在force,中断会让FileChannel被关掉,所以用unpark叫醒,由线程自己看到closed退出
+    private void stopThread(Thread t) {
+        if(t == null) {
+            return;
+        }
+        LockSupport.unpark(t);
+        try {
+            t.join();
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+    }
+
+    @Override
+    public void setAsyncCommitDelay(long millis) {
+        asyncCommitDelay = Math.max(1, millis);
+    }
+
+    private void checkpointLoop() {
+        long lastTime = System.currentTimeMillis();
+        while(!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(CKPT_TICK));
+            if(closed) {
+                return;
+            }
+            long grown = logger.tailLsn() - lastCkptLsn;
+            long now = System.currentTimeMillis();
+            if(grown >= CKPT_LOG_BYTES || (grown > 0 && now - lastTime >= CKPT_INTERVAL)) {
+                checkpoint();
+                lastTime = now;
+            }
+        }
+    }
+
+    private void noteLsn(long xid, long lsn) {
+        lsnLock.lock();
+        try {
+            if(lastLsn.getOrDefault(xid, 0) < lsn) {
+                lastLsn.put(xid, lsn);
+            }
+            if(xid != TransactionManagerImpl.SUPER_XID && !firstLsn.containsKey(xid)) {
+                firstLsn.put(xid, lsn);
+            }
+        } finally {
+            lsnLock.unlock();
+        }
+    }
+
+    private void forgetLsn(long xid) {
+        lsnLock.lock();
+        try {
+            lastLsn.remove(xid);
+            firstLsn.remove(xid);
+        } finally {
+            lsnLock.unlock();
+        }
+    }
+
+    /**
+     * 提交事务,commit日志落盘就算提交成功,不再单独force XID文件
+     * 组提交: 只等自己的日志落盘,同一时刻提交的事务共用一次force
+     * 索引是用SUPER_XID修改的,不属于任何事务,提交时把它的日志也一起落盘,否则崩溃后数据在而索引丢了
+     * 没写过日志的事务不需要commit日志,恢复时它的状态无关紧要
+     * 修改事务状态之后才从活跃事务表里去掉,检查点看不到这个事务时,它的状态一定已经写进XID文件,sync之后才会回收commit日志
+     */
+    @Override
+    public void commit(long xid) {
+        commit(xid, false);
+    }
+
+    /**
+     * 异步提交,只把commit日志写进缓冲区,由logFlusher在asyncCommitDelay之内落盘
+     * 事务状态立刻修改,其他事务马上能看到;XID文件里的状态可能比commit日志先落盘,
+     * 所以恢复时不看XID文件,日志里没有commit日志的事务一律撤销,崩溃只会丢掉最后一小段提交,不会只恢复一半
+     */
+    @Override
+    public void commitAsync(long xid) {
+        commit(xid, true);
+    }
+
+    private void commit(long xid, boolean async) {
+        long lsn;
+        boolean logged;
+        lsnLock.lock();
+        try {
+            logged = lastLsn.containsKey(xid);
+            lsn = lastLsn.getOrDefault(TransactionManagerImpl.SUPER_XID, 0);
+        } finally {
+            lsnLock.unlock();
+        }
+        if(logged) {
+            lsn = logger.log(Recover.commitRecord(xid));
+        }
+        if(async) {
+            asyncLsn.accumulateAndGet(lsn, Math::max);
+        } else if(lsn > 0) {
+            logger.flush(lsn);
+        }
+        tm.commit(xid);
+        forgetLsn(xid);
+    }
+
+    // 回滚事务,abort日志丢了也没关系,恢复时会把它当作未结束的事务撤销
+    @Override
+    public void abort(long xid) {
+        boolean logged;
+        lsnLock.lock();
+        try {
+            logged = lastLsn.containsKey(xid);
+        } finally {
+            lsnLock.unlock();
+        }
+        if(logged) {
+            logger.log(Recover.abortRecord(xid));
+        }
+        tm.abort(xid);
+        forgetLsn(xid);
     }
 
     public void releaseDataItem(DataItem di) {
@@ -162,7 +469,14 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     // 创建的时候,就会给每个存在的页面创建索引index.
     void fillPageIndex() {
         int pageNumber = pc.getPageNumber();
+        // 每页都要读一遍,让后面的页面在IO线程上提前读进来,冷启动时不必逐页等待磁盘
+        for(int i = 2; i <= pageNumber && i < 2 + PREFETCH_AHEAD; i ++) {
+            pc.prefetch(i);
+        }
         for(int i = 2; i <= pageNumber; i ++) {
+            if(i + PREFETCH_AHEAD <= pageNumber) {
+                pc.prefetch(i + PREFETCH_AHEAD);
+            }
             Page pg = null;
             try {
                 pg = pc.getPage(i);
@@ -1,23 +1,26 @@
 package top.guoziyang.mydb.backend.dm;
 
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-import java.util.Map.Entry;
-
-import com.google.common.primitives.Bytes;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 
+import top.guoziyang.mydb.backend.common.LongList;
+import top.guoziyang.mydb.backend.common.LongLongMap;
+import top.guoziyang.mydb.backend.common.LongObjectMap;
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.LogRecord;
 import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.page.PageX;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
+import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
+import top.guoziyang.mydb.common.Error;
 
 // 恢复的逻辑实现
 public class Recover {
@@ -25,13 +28,47 @@ public class Recover {
     // 日志类型
     // Insert Log: [LogType] [XID] [Pgno] [Offset] [Raw]
     // Update Log: [LogType] [XID] [UID] [OldRaw] [NewRaw], UID是pgno和offset的结合体,高32位是pgno,低16位是offset
+    // Delta Log: [LogType] [XID] [UID] [Count] ([Off] [Len] [OldBytes] [NewBytes])...,只记录修改过的字节区间,Off是相对DataItem开头的偏移
+    //   DataItem只改了一小部分(比如Entry的XMAX、节点里的一个key)时用它代替Update Log
+    // Move Log: [LogType] [XID] [UID] [From] [To] [Len] [Count] ([Off] [Len] [NewBytes])...
+    //   先把DataItem中[From, From+Len)整体移到To,再写入其余改动的字节,B+树节点插入key时使用
+    //   没有旧数据,只能重做,只用于SUPER_XID;重做不是幂等的,依靠PageLSN保证只做一次
+    // Checkpoint Log: [LogType] [Begin] [PageCount] [DirtyCount] [Pgno RecLSN]... [ActiveCount] [XID FirstLSN]...
+    //   Begin是开始做检查点时日志的末尾,PageCount是当时的页数,之后是脏页表和活跃事务表
+    // Commit Log / Abort Log: [LogType] [XID]
+    //   事务的结局以日志为准,提交时commit日志落盘就算提交成功,XID文件只是一个延迟写入的缓存,恢复时按日志重建
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_DELTA = 3;
+    private static final byte LOG_TYPE_MOVE = 4;
+    private static final byte LOG_TYPE_COMMIT = 5;
+    private static final byte LOG_TYPE_ABORT = 6;
+
+    // 两个修改区间之间相同的字节不超过这么多时合并成一个区间,比多一个区间头更省
+    private static final int DELTA_MERGE_GAP = 2;
 
     // redo or undo 重做或者撤销
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
+    // 并行redo的线程数,不同页面的redo互不相关,按pgno分给各个线程
+    private static final int REDO_THREADS = Math.min(8, Runtime.getRuntime().availableProcessors());
+    private static final int REDO_QUEUE_SIZE = 1024;
+    // 通知redo线程结束
+    private static final RedoTask REDO_END = new RedoTask(0, null);
+
+    // 交给redo线程的一条日志
+    private static class RedoTask {
+        long lsn;
+        byte[] log;
+
+        RedoTask(long lsn, byte[] log) {
+            this.lsn = lsn;
+            this.log = log;
+        }
+    }
+
     // 插入日志信息
     static class InsertLogInfo {
         long xid;
@@ -49,29 +86,53 @@ public class Recover {
         byte[] newRaw;
     }
 
+    // 检查点日志信息
+    static class CheckpointInfo {
+        long begin;
+        int pageCount;
+        LongLongMap dirtyPages;     // pgno -> recLSN
+        LongLongMap activeXids;     // xid -> firstLSN
+    }
+
     // 恢复入口
     public static void recover(TransactionManager tm, Logger lg, PageCache pc) {
+        recover(tm, lg, pc, REDO_THREADS);
+    }
+
+    // redoThreads不大于1时在当前线程上串行redo
+    public static void recover(TransactionManager tm, Logger lg, PageCache pc, int redoThreads) {
         System.out.println("Recovering...");
-        // 1. truncate多余的page
-        lg.rewind();
+        // 0. 找到最近一次检查点,只需要从它记录的最早位置开始读日志
+        long start = 0;
         int maxPgno = 0;
-        // 找到最大的pgno
-        while(true) {
+        long ckpt = 0;
+        Page one = null;
+        try {
+            one = pc.getPage(1);
+        } catch(Exception e) {
+            Panic.panic(e);
+        }
+        ckpt = PageOne.getCheckpoint(one);
+        one.release();
+        if(ckpt > 0) {
+            lg.seek(ckpt);
             byte[] log = lg.next();
-            if(log == null) break;
-            int pgno;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                pgno = li.pgno;
-            } else {
-                UpdateLogInfo li = parseUpdateLog(log);
-                pgno = li.pgno;
-            }
-            if(pgno > maxPgno) {
-                maxPgno = pgno;
+            if(log == null || !isCheckpointLog(log)) {
+                Panic.panic(Error.BadLogFileException);
             }
+            CheckpointInfo ci = parseCheckpointLog(log);
+            start = startOf(ci);
+            // 检查点之前建的页面都已经落盘,不能被截掉
+            maxPgno = ci.pageCount;
+            System.out.println("Checkpoint at " + ckpt + ", start from " + start + ".");
         }
 
+        // 1. 分析和redo合并成一遍: 找最大的pgno,重做所有日志,同时记下未结束事务每条日志的LSN,遇到commit/abort日志时修正事务状态
+        // redo只会碰到日志里出现过的页面,所以截断放在这一遍之后也不会误删
+        LongObjectMap<LongList> undoLsns = new LongObjectMap<>();
+        maxPgno = Math.max(maxPgno, redoTranscations(tm, lg, pc, start, undoLsns, redoThreads));
+        System.out.println("Redo Transactions Over.");
+
         if(maxPgno == 0) {
             maxPgno = 1;
         }
@@ -79,93 +140,166 @@ public class Recover {
         pc.truncateByBgno(maxPgno);
         System.out.println("Truncate to " + maxPgno + " pages.");
 
-        // 2. redo所有已提交的事务
-        redoTranscations(tm, lg, pc);
-        System.out.println("Redo Transactions Over.");
-
-        // 3. undo所有未提交的事务
-        undoTranscations(tm, lg, pc);
+        // 2. undo所有未提交的事务
+        undoTranscations(tm, lg, pc, undoLsns);
         System.out.println("Undo Transactions Over.");
 
         System.out.println("Recovery Over.");
     }
 
-    // 重做已提交的事务
-    // 这里redo每次遍历所有的日志,对于每条日志,如果对应的事务不是active的,就进行redo操作
-    // 但是在实际的数据库中,redo通常是从checkpoint开始的,而不是从头开始的
-    // checkpoint是数据库在某个时间点的一个一致性状态,它会记录所有已提交的事务
-    // 这样在恢复时,就不需要从头开始遍历所有日志,而是从checkpoint开始,大大提高了恢复的效率
-    // 也就是定期的做checkpoint,这样在恢复时就可以从checkpoint开始,而不是从头开始
-    // 就是每次成功写入磁盘之后,都做一个checkpoint,表明这个时间点之前的所有操作都是持久化的
-    private static void redoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 遍历所有日志，重做未active的事务
-        lg.rewind();
+    // 重做日志
+    // XID文件里的状态可能比日志旧,读到某条日志时还不知道它的事务最后有没有提交,所以所有日志都先redo
+    // 每个事务都记下每条日志的LSN,读到它的commit/abort日志时修改状态并丢掉这些LSN
+    // 不看XID文件里的状态: 异步提交时XID文件里的committed可能先于commit日志落盘,只有commit日志才算数
+    // 提交过的事务的commit日志一定在它自己的日志之后,只要它的日志还在,commit日志也一定还在
+    // 剩下的就是崩溃时还没结束的事务,留给undo按LSN倒着读回来,不在内存里缓存日志本身
+    // 读日志的线程只负责解析和分发,redo交给RedoWorkers,同一个页面的日志总是进同一个队列,所以页内的顺序不变
+    // 返回日志里出现过的最大的pgno
+    private static int redoTranscations(TransactionManager tm, Logger lg, PageCache pc, long start, LongObjectMap<LongList> undoLsns, int redoThreads) {
+        int maxPgno = 0;
+        RedoWorkers workers = redoThreads > 1 ? new RedoWorkers(pc, redoThreads) : null;
+        seekStart(lg, start);
         while(true) {
             byte[] log = lg.next();
             if(log == null) break;
-            // 如果事务不是active的,说明已经提交,进行redo
+            if(isCheckpointLog(log)) continue;
+            if(isEndLog(log)) {
+                long xid = Parser.parseLong(log, OF_XID);
+                if(log[OF_TYPE] == LOG_TYPE_COMMIT) {
+                    tm.commit(xid);
+                } else {
+                    tm.abort(xid);
+                }
+                undoLsns.remove(xid);
+                continue;
+            }
+            long xid;
+            int pgno;
             if(isInsertLog(log)) {
                 InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(!tm.isActive(xid)) {
-                    doInsertLog(pc, log, REDO);
-                }
+                xid = li.xid;
+                pgno = li.pgno;
             } else {
                 UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                // 不是active的事务进行redo
-                if(!tm.isActive(xid)) {
-                    doUpdateLog(pc, log, REDO);
+                xid = xi.xid;
+                pgno = xi.pgno;
+            }
+            if(pgno > maxPgno) {
+                maxPgno = pgno;
+            }
+            if(workers != null) {
+                workers.dispatch(pgno, new RedoTask(lg.readLsn(), log));
+            } else {
+                doRedo(pc, log, lg.readLsn());
+            }
+            if(xid != TransactionManagerImpl.SUPER_XID) {
+                LongList lsns = undoLsns.get(xid);
+                if(lsns == null) {
+                    lsns = new LongList();
+                    undoLsns.put(xid, lsns);
                 }
+                lsns.add(lg.readLsn());
             }
         }
+        if(workers != null) {
+            workers.finish();
+        }
+        return maxPgno;
     }
 
-    // 撤销未提交的事务,遍历日志,缓存active的事务日志,然后倒序undo,利用map+list结构
-    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc) {
-        // 遍历所有日志，缓存active的事务日志
-        // key: xid, value: log list
-        // 因为一个xid可能对应有多条需要被undo的操作日志
-        Map<Long, List<byte[]>> logCache = new HashMap<>();
-        lg.rewind();
-        while(true) {
-            byte[] log = lg.next();
-            if(log == null) break;
-            if(isInsertLog(log)) {
-                InsertLogInfo li = parseInsertLog(log);
-                long xid = li.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
+    private static void doRedo(PageCache pc, byte[] log, long lsn) {
+        if(isInsertLog(log)) {
+            doInsertLog(pc, log, REDO, lsn);
+        } else {
+            doUpdateLog(pc, log, REDO, lsn);
+        }
+    }
+
+    // PageLSN不小于lsn说明这条日志的修改已经在页面里了
+    private static boolean redone(Page pg, int flag, long lsn) {
+        return flag == REDO && PageX.getPageLsn(pg) >= lsn;
+    }
+
+    // 重做之后更新页面的LSN,内存里的LSN同时让页面进入脏页表
+    private static void setLsn(Page pg, int flag, long lsn) {
+        if(flag == REDO) {
+            pg.setLsn(lsn);
+            PageX.setPageLsn(pg, lsn);
+        }
+    }
+
+    // 并行redo的工作线程,每个线程一个队列,按pgno取模分发
+    private static class RedoWorkers {
+        private BlockingQueue<RedoTask>[] queues;
+        private Thread[] threads;
+
+        RedoWorkers(PageCache pc, int n) {
+            @SuppressWarnings("unchecked")
+            BlockingQueue<RedoTask>[] qs = (BlockingQueue<RedoTask>[])new BlockingQueue<?>[n];
+            queues = qs;
+            threads = new Thread[n];
+            for(int i = 0; i < n; i ++) {
+                BlockingQueue<RedoTask> queue = new ArrayBlockingQueue<>(REDO_QUEUE_SIZE);
+                queues[i] = queue;
+                threads[i] = new Thread(() -> {
+                    try {
+                        while(true) {
+                            RedoTask task = queue.take();
+                            if(task == REDO_END) break;
+                            doRedo(pc, task.log, task.lsn);
+                        }
+                    } catch(InterruptedException e) {
+                        Panic.panic(e);
                     }
-                    logCache.get(xid).add(log);
+                }, "recover-redo-" + i);
+                threads[i].start();
+            }
+        }
+
+        void dispatch(int pgno, RedoTask task) {
+            try {
+                queues[Math.floorMod(pgno, queues.length)].put(task);
+            } catch(InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+
+        // 通知所有线程结束,并等它们把队列里剩下的日志做完
+        void finish() {
+            try {
+                for(BlockingQueue<RedoTask> queue : queues) {
+                    queue.put(REDO_END);
                 }
-            } else {
-                UpdateLogInfo xi = parseUpdateLog(log);
-                long xid = xi.xid;
-                if(tm.isActive(xid)) {
-                    if(!logCache.containsKey(xid)) {
-                        logCache.put(xid, new ArrayList<>());
-                    }
-                    logCache.get(xid).add(log);
+                for(Thread t : threads) {
+                    t.join();
                 }
+            } catch(InterruptedException e) {
+                Panic.panic(e);
             }
         }
+    }
 
-        // 对所有active log进行倒序undo
-        // 因为日志是顺序写入的，后面的日志一定是后发生的操作
-        for(Entry<Long, List<byte[]>> entry : logCache.entrySet()) {
-            List<byte[]> logs = entry.getValue();
-            for (int i = logs.size()-1; i >= 0; i --) {
-                byte[] log = logs.get(i);
+    // 撤销未提交的事务,按分析时记下的LSN倒序读出日志并undo
+    // 因为日志是顺序写入的，后面的日志一定是后发生的操作
+    private static void undoTranscations(TransactionManager tm, Logger lg, PageCache pc, LongObjectMap<LongList> undoLsns) {
+        for(int i = 0; i < undoLsns.capacity(); i ++) {
+            if(!undoLsns.isUsed(i)) {
+                continue;
+            }
+            LongList lsns = undoLsns.valueAt(i);
+            for(int j = lsns.size()-1; j >= 0; j --) {
+                byte[] log = lg.read(lsns.get(j));
+                if(log == null) {
+                    Panic.panic(Error.BadLogFileException);
+                }
                 if(isInsertLog(log)) {
-                    doInsertLog(pc, log, UNDO);
+                    doInsertLog(pc, log, UNDO, 0);
                 } else {
-                    doUpdateLog(pc, log, UNDO);
+                    doUpdateLog(pc, log, UNDO, 0);
                 }
             }
             // 撤销完该事务的所有日志后，标记该事务为已中止
-            tm.abort(entry.getKey());
+            tm.abort(undoLsns.keyAt(i));
         }
     }
 
@@ -173,32 +307,325 @@ public class Recover {
         return log[0] == LOG_TYPE_INSERT;
     }
 
+    private static boolean isCheckpointLog(byte[] log) {
+        return log[0] == LOG_TYPE_CHECKPOINT;
+    }
+
+    private static boolean isEndLog(byte[] log) {
+        return log[0] == LOG_TYPE_COMMIT || log[0] == LOG_TYPE_ABORT;
+    }
+
+    // start为0表示没有检查点,从头读
+    private static void seekStart(Logger lg, long start) {
+        if(start == 0) {
+            lg.rewind();
+        } else {
+            lg.seek(start);
+        }
+    }
+
+    /**
+     * 恢复需要从哪里开始读日志:
+     * 检查点开始时的日志末尾、脏页表里最小的recLSN(这之前的修改都已经在磁盘上)、活跃事务的第一条日志(undo需要)三者取最小
+     */
+    static long startOf(CheckpointInfo ci) {
+        return Math.min(ci.begin, startOf(ci.dirtyPages, ci.activeXids));
+    }
+
+    static long startOf(LongLongMap dirtyPages, LongLongMap activeXids) {
+        long start = Long.MAX_VALUE;
+        for(int i = 0; i < dirtyPages.capacity(); i ++) {
+            if(dirtyPages.isUsed(i)) {
+                start = Math.min(start, dirtyPages.valueAt(i));
+            }
+        }
+        for(int i = 0; i < activeXids.capacity(); i ++) {
+            if(activeXids.isUsed(i)) {
+                start = Math.min(start, activeXids.valueAt(i));
+            }
+        }
+        return start;
+    }
+
+    // 生成检查点日志
+    public static byte[] checkpointLog(long begin, int pageCount, LongLongMap dirtyPages, LongLongMap activeXids) {
+        ByteBuffer buf = ByteBuffer.allocate(1 + 8 + 4 + 4 + dirtyPages.size() * 12 + 4 + activeXids.size() * 16);
+        buf.put(LOG_TYPE_CHECKPOINT);
+        buf.putLong(begin);
+        buf.putInt(pageCount);
+        buf.putInt(dirtyPages.size());
+        for(int i = 0; i < dirtyPages.capacity(); i ++) {
+            if(dirtyPages.isUsed(i)) {
+                buf.putInt((int)dirtyPages.keyAt(i));
+                buf.putLong(dirtyPages.valueAt(i));
+            }
+        }
+        buf.putInt(activeXids.size());
+        for(int i = 0; i < activeXids.capacity(); i ++) {
+            if(activeXids.isUsed(i)) {
+                buf.putLong(activeXids.keyAt(i));
+                buf.putLong(activeXids.valueAt(i));
+            }
+        }
+        return buf.array();
+    }
+
+    static CheckpointInfo parseCheckpointLog(byte[] log) {
+        ByteBuffer buf = ByteBuffer.wrap(log, 1, log.length - 1);
+        CheckpointInfo ci = new CheckpointInfo();
+        ci.begin = buf.getLong();
+        ci.pageCount = buf.getInt();
+        int n = buf.getInt();
+        ci.dirtyPages = new LongLongMap(n);
+        for(int i = 0; i < n; i ++) {
+            ci.dirtyPages.put(buf.getInt(), buf.getLong());
+        }
+        n = buf.getInt();
+        ci.activeXids = new LongLongMap(n);
+        for(int i = 0; i < n; i ++) {
+            ci.activeXids.put(buf.getLong(), buf.getLong());
+        }
+        return ci;
+    }
+
     // [LogType] [XID] [UID] [OldRaw] [NewRaw]
     private static final int OF_TYPE = 0;
     private static final int OF_XID = OF_TYPE+1;
     private static final int OF_UPDATE_UID = OF_XID+8;
     private static final int OF_UPDATE_RAW = OF_UPDATE_UID+8;
 
+    // 更新日志的内容,由Logger直接编码进日志缓冲区,newRaw直接从页面里复制,中间不分配数组
+    // 修改的字节区间记起来比整个前后镜像小时,编码成Delta Log
+    static class UpdateRecord implements LogRecord {
+        long xid;
+        long uid;
+        byte[] oldRaw;
+        SubArray newRaw;
+        boolean delta;
+        int[] ranges = new int[16];     // 修改区间,两个一组: 相对偏移, 长度
+        int rangeCount;
+        int deltaBytes;
+
+        // 找出oldRaw和newRaw之间所有不同的字节区间,决定用哪种日志
+        void diff() {
+            rangeCount = 0;
+            deltaBytes = 0;
+            int n = oldRaw.length;
+            int i = 0;
+            while(i < n) {
+                if(oldRaw[i] == newRaw.raw[newRaw.start + i]) {
+                    i ++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                int same = 0;
+                for(i = end; i < n && same <= DELTA_MERGE_GAP; i ++) {
+                    if(oldRaw[i] == newRaw.raw[newRaw.start + i]) {
+                        same ++;
+                    } else {
+                        same = 0;
+                        end = i + 1;
+                    }
+                }
+                i = end;
+                if(rangeCount * 2 == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, ranges.length << 1);
+                }
+                ranges[rangeCount * 2] = start;
+                ranges[rangeCount * 2 + 1] = end - start;
+                rangeCount ++;
+                deltaBytes += 4 + 2 * (end - start);
+            }
+            delta = 2 + deltaBytes < 2 * n;
+        }
+
+        @Override
+        public int size() {
+            if(delta) {
+                return OF_UPDATE_RAW + 2 + deltaBytes;
+            }
+            return OF_UPDATE_RAW + oldRaw.length + (newRaw.end - newRaw.start);
+        }
+
+        @Override
+        public void encode(byte[] dst, int off) {
+            dst[off + OF_TYPE] = delta ? LOG_TYPE_DELTA : LOG_TYPE_UPDATE;
+            Parser.putLong(dst, off + OF_XID, xid);
+            Parser.putLong(dst, off + OF_UPDATE_UID, uid);
+            off += OF_UPDATE_RAW;
+            if(!delta) {
+                System.arraycopy(oldRaw, 0, dst, off, oldRaw.length);
+                off += oldRaw.length;
+                System.arraycopy(newRaw.raw, newRaw.start, dst, off, newRaw.end - newRaw.start);
+                return;
+            }
+            Parser.putShort(dst, off, (short)rangeCount);
+            off += 2;
+            for(int r = 0; r < rangeCount; r ++) {
+                int start = ranges[r * 2];
+                int len = ranges[r * 2 + 1];
+                Parser.putShort(dst, off, (short)start);
+                Parser.putShort(dst, off + 2, (short)len);
+                off += 4;
+                System.arraycopy(oldRaw, start, dst, off, len);
+                off += len;
+                System.arraycopy(newRaw.raw, newRaw.start + start, dst, off, len);
+                off += len;
+            }
+        }
+    }
+
+    // Move Log的内容: 把旧数据按移动之后的样子和新数据比较,只记下移动本身和仍然不同的字节
+    static class MoveRecord implements LogRecord {
+        long xid;
+        long uid;
+        int from, to, len;
+        SubArray newRaw;
+        byte[] moved = new byte[0];     // 旧数据执行移动之后的样子
+        int[] ranges = new int[16];
+        int rangeCount;
+        int patchBytes;
+
+        void diff(byte[] oldRaw) {
+            int n = oldRaw.length;
+            if(moved.length < n) {
+                moved = new byte[n];
+            }
+            System.arraycopy(oldRaw, 0, moved, 0, n);
+            System.arraycopy(oldRaw, from, moved, to, len);
+            rangeCount = 0;
+            patchBytes = 0;
+            int i = 0;
+            while(i < n) {
+                if(moved[i] == newRaw.raw[newRaw.start + i]) {
+                    i ++;
+                    continue;
+                }
+                int start = i;
+                int end = i + 1;
+                int same = 0;
+                for(i = end; i < n && same <= DELTA_MERGE_GAP; i ++) {
+                    if(moved[i] == newRaw.raw[newRaw.start + i]) {
+                        same ++;
+                    } else {
+                        same = 0;
+                        end = i + 1;
+                    }
+                }
+                i = end;
+                if(rangeCount * 2 == ranges.length) {
+                    ranges = Arrays.copyOf(ranges, ranges.length << 1);
+                }
+                ranges[rangeCount * 2] = start;
+                ranges[rangeCount * 2 + 1] = end - start;
+                rangeCount ++;
+                patchBytes += 4 + (end - start);
+            }
+        }
+
+        @Override
+        public int size() {
+            return OF_UPDATE_RAW + 8 + patchBytes;
+        }
+
+        @Override
+        public void encode(byte[] dst, int off) {
+            dst[off + OF_TYPE] = LOG_TYPE_MOVE;
+            Parser.putLong(dst, off + OF_XID, xid);
+            Parser.putLong(dst, off + OF_UPDATE_UID, uid);
+            off += OF_UPDATE_RAW;
+            Parser.putShort(dst, off, (short)from);
+            Parser.putShort(dst, off + 2, (short)to);
+            Parser.putShort(dst, off + 4, (short)len);
+            Parser.putShort(dst, off + 6, (short)rangeCount);
+            off += 8;
+            for(int r = 0; r < rangeCount; r ++) {
+                int start = ranges[r * 2];
+                int l = ranges[r * 2 + 1];
+                Parser.putShort(dst, off, (short)start);
+                Parser.putShort(dst, off + 2, (short)l);
+                off += 4;
+                System.arraycopy(newRaw.raw, newRaw.start + start, dst, off, l);
+                off += l;
+            }
+        }
+    }
+
+    // 每个线程复用同一个日志对象,填好字段交给Logger.log,log返回之后就可以再用
+    private static final ThreadLocal<UpdateRecord> UPDATE_RECORD = ThreadLocal.withInitial(UpdateRecord::new);
+    private static final ThreadLocal<InsertRecord> INSERT_RECORD = ThreadLocal.withInitial(InsertRecord::new);
+    private static final ThreadLocal<MoveRecord> MOVE_RECORD = ThreadLocal.withInitial(MoveRecord::new);
+    private static final ThreadLocal<EndRecord> END_RECORD = ThreadLocal.withInitial(EndRecord::new);
+
+    // commit/abort日志的内容: [LogType] [XID]
+    static class EndRecord implements LogRecord {
+        byte type;
+        long xid;
+
+        @Override
+        public int size() {
+            return OF_XID + 8;
+        }
+
+        @Override
+        public void encode(byte[] dst, int off) {
+            dst[off + OF_TYPE] = type;
+            Parser.putLong(dst, off + OF_XID, xid);
+        }
+    }
+
+    public static LogRecord commitRecord(long xid) {
+        return endRecord(LOG_TYPE_COMMIT, xid);
+    }
+
+    public static LogRecord abortRecord(long xid) {
+        return endRecord(LOG_TYPE_ABORT, xid);
+    }
+
+    private static LogRecord endRecord(byte type, long xid) {
+        EndRecord rec = END_RECORD.get();
+        rec.type = type;
+        rec.xid = xid;
+        return rec;
+    }
+
+    // 生成移动日志,from, to是相对DataItem开头的偏移
+    public static LogRecord moveRecord(long xid, DataItem di, int from, int to, int len) {
+        MoveRecord rec = MOVE_RECORD.get();
+        rec.xid = xid;
+        rec.uid = di.getUid();
+        rec.from = from;
+        rec.to = to;
+        rec.len = len;
+        rec.newRaw = di.getRaw();
+        rec.diff(di.getOldRaw());
+        return rec;
+    }
+
     // 生成更新日志
-    public static byte[] updateLog(long xid, DataItem di) {
-        byte[] logType = {LOG_TYPE_UPDATE};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] uidRaw = Parser.long2Byte(di.getUid());
-        byte[] oldRaw = di.getOldRaw();
-        SubArray raw = di.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
-        // 拼接出来一个update的log
-        return Bytes.concat(logType, xidRaw, uidRaw, oldRaw, newRaw);
+    public static LogRecord updateRecord(long xid, DataItem di) {
+        UpdateRecord rec = UPDATE_RECORD.get();
+        rec.xid = xid;
+        rec.uid = di.getUid();
+        rec.oldRaw = di.getOldRaw();
+        rec.newRaw = di.getRaw();
+        rec.diff();
+        return rec;
     }
 
     // 解析更新日志,其实就是反序列化,重新封装成UpdateLogInfo对象
+    // Delta Log只解析出xid, pgno和offset,修改区间由doDeltaLog直接从日志里读
     private static UpdateLogInfo parseUpdateLog(byte[] log) {
         UpdateLogInfo li = new UpdateLogInfo();
-        li.xid = Parser.parseLong(Arrays.copyOfRange(log, OF_XID, OF_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OF_UPDATE_UID, OF_UPDATE_RAW));
+        li.xid = Parser.parseLong(log, OF_XID);
+        long uid = Parser.parseLong(log, OF_UPDATE_UID);
         li.offset = (short)(uid & ((1L << 16) - 1));
         uid >>>= 32;
         li.pgno = (int)(uid & ((1L << 32) - 1));
+        if(log[0] == LOG_TYPE_DELTA || log[0] == LOG_TYPE_MOVE) {
+            return li;
+        }
         int length = (log.length - OF_UPDATE_RAW) / 2;
         li.oldRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW, OF_UPDATE_RAW+length);
         li.newRaw = Arrays.copyOfRange(log, OF_UPDATE_RAW+length, OF_UPDATE_RAW+length*2);
@@ -207,7 +634,15 @@ public class Recover {
 
 
     // 根据日志和标志进行更新操作
-    private static void doUpdateLog(PageCache pc, byte[] log, int flag) {
+    private static void doUpdateLog(PageCache pc, byte[] log, int flag, long lsn) {
+        if(log[0] == LOG_TYPE_DELTA) {
+            doDeltaLog(pc, log, flag, lsn);
+            return;
+        }
+        if(log[0] == LOG_TYPE_MOVE) {
+            doMoveLog(pc, log, flag, lsn);
+            return;
+        }
         int pgno;
         short offset;
         byte[] raw;
@@ -231,7 +666,70 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if(redone(pg, flag, lsn)) return;
             PageX.recoverUpdate(pg, raw, offset);
+            setLsn(pg, flag, lsn);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // REDO把每个区间写成新的字节,UNDO写回旧的字节
+    private static void doDeltaLog(PageCache pc, byte[] log, int flag, long lsn) {
+        UpdateLogInfo xi = parseUpdateLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(xi.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(redone(pg, flag, lsn)) return;
+            int count = Parser.parseShort(log, OF_UPDATE_RAW);
+            int off = OF_UPDATE_RAW + 2;
+            for(int r = 0; r < count; r ++) {
+                int start = Parser.parseShort(log, off);
+                int len = Parser.parseShort(log, off + 2);
+                off += 4;
+                int src = flag == REDO ? off + len : off;
+                PageX.recoverUpdate(pg, log, src, len, (short)(xi.offset + start));
+                off += 2 * len;
+            }
+            setLsn(pg, flag, lsn);
+        } finally {
+            pg.release();
+        }
+    }
+
+    // Move Log只能重做
+    private static void doMoveLog(PageCache pc, byte[] log, int flag, long lsn) {
+        if(flag != REDO) {
+            Panic.panic(Error.BadLogFileException);
+        }
+        UpdateLogInfo xi = parseUpdateLog(log);
+        Page pg = null;
+        try {
+            pg = pc.getPage(xi.pgno);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        try {
+            if(redone(pg, flag, lsn)) return;
+            int off = OF_UPDATE_RAW;
+            int from = Parser.parseShort(log, off);
+            int to = Parser.parseShort(log, off + 2);
+            int moveLen = Parser.parseShort(log, off + 4);
+            int count = Parser.parseShort(log, off + 6);
+            off += 8;
+            PageX.recoverMove(pg, (short)(xi.offset + from), (short)(xi.offset + to), moveLen);
+            for(int r = 0; r < count; r ++) {
+                int start = Parser.parseShort(log, off);
+                int len = Parser.parseShort(log, off + 2);
+                off += 4;
+                PageX.recoverUpdate(pg, log, off, len, (short)(xi.offset + start));
+                off += len;
+            }
+            setLsn(pg, flag, lsn);
         } finally {
             pg.release();
         }
@@ -242,12 +740,35 @@ public class Recover {
     private static final int OF_INSERT_OFFSET = OF_INSERT_PGNO+4;
     private static final int OF_INSERT_RAW = OF_INSERT_OFFSET+2;
 
-    public static byte[] insertLog(long xid, Page pg, byte[] raw) {
-        byte[] logTypeRaw = {LOG_TYPE_INSERT};
-        byte[] xidRaw = Parser.long2Byte(xid);
-        byte[] pgnoRaw = Parser.int2Byte(pg.getPageNumber());
-        byte[] offsetRaw = Parser.short2Byte(PageX.getFSO(pg));
-        return Bytes.concat(logTypeRaw, xidRaw, pgnoRaw, offsetRaw, raw);
+    // 插入日志的内容,由Logger直接编码进日志缓冲区
+    static class InsertRecord implements LogRecord {
+        long xid;
+        int pgno;
+        short offset;
+        byte[] raw;
+
+        @Override
+        public int size() {
+            return OF_INSERT_RAW + raw.length;
+        }
+
+        @Override
+        public void encode(byte[] dst, int off) {
+            dst[off + OF_TYPE] = LOG_TYPE_INSERT;
+            Parser.putLong(dst, off + OF_XID, xid);
+            Parser.putInt(dst, off + OF_INSERT_PGNO, pgno);
+            Parser.putShort(dst, off + OF_INSERT_OFFSET, offset);
+            System.arraycopy(raw, 0, dst, off + OF_INSERT_RAW, raw.length);
+        }
+    }
+
+    public static LogRecord insertRecord(long xid, Page pg, byte[] raw) {
+        InsertRecord rec = INSERT_RECORD.get();
+        rec.xid = xid;
+        rec.pgno = pg.getPageNumber();
+        rec.offset = PageX.getFSO(pg);
+        rec.raw = raw;
+        return rec;
     }
 
     private static InsertLogInfo parseInsertLog(byte[] log) {
@@ -259,7 +780,7 @@ public class Recover {
         return li;
     }
 
-    private static void doInsertLog(PageCache pc, byte[] log, int flag) {
+    private static void doInsertLog(PageCache pc, byte[] log, int flag, long lsn) {
         InsertLogInfo li = parseInsertLog(log);
         Page pg = null;
         try {
@@ -268,6 +789,7 @@ public class Recover {
             Panic.panic(e);
         }
         try {
+            if(redone(pg, flag, lsn)) return;
             if(flag == UNDO) {
                 // 撤销插入操作,将该data item标记为无效,是逻辑删除
                 DataItem.setDataItemRawInvalid(li.raw);
@@ -278,6 +800,7 @@ public class Recover {
             // 这里使用recoverInsert是因为insert操作会移动offset,而我们在恢复时需要保持offset不变
             // 所以使用recoverInsert方法
             PageX.recoverInsert(pg, li.raw, li.offset);
+            setLsn(pg, flag, lsn);
         } finally {
             pg.release();
         }
@@ -21,6 +21,9 @@ public interface DataItem {
     void before();
     void unBefore();
     void after(long xid);
+    // 同after,这次修改把data()中[from, from+len)整体移到了to,日志只记录移动和其余改动的字节
+    // 这种日志只能重做不能撤销,只给SUPER_XID使用
+    void afterMove(long xid, int from, int to, int len);
     void release();
 
     void lock();
@@ -52,10 +52,12 @@ public class DataItemImpl implements DataItem {
 
     /**
      * 一次修改之前要调用before方法,wlock
+     * 修改期间还持有dm的修改锁,检查点写回被引用的页面时不会写出改到一半的数据
      */
     @Override
     public void before() {
         wLock.lock();
+        dm.lockForUpdate();
         pg.setDirty(true);
         System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
@@ -66,6 +68,7 @@ public class DataItemImpl implements DataItem {
     @Override
     public void unBefore() {
         System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        dm.unlockForUpdate();
         wLock.unlock();
     }
 
@@ -76,6 +79,14 @@ public class DataItemImpl implements DataItem {
     @Override
     public void after(long xid) {
         dm.logDataItem(xid, this);
+        dm.unlockForUpdate();
+        wLock.unlock();
+    }
+
+    @Override
+    public void afterMove(long xid, int from, int to, int len) {
+        dm.logDataItemMove(xid, this, OF_DATA + from, OF_DATA + to, len);
+        dm.unlockForUpdate();
         wLock.unlock();
     }
 
@@ -0,0 +1,112 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+import top.guoziyang.mydb.backend.common.SubArray;
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 读日志用的缓冲区
+ *
+ * 顺序扫描时每次从段文件读入一大块(chunkSize),之后的日志直接在缓冲区里解析和校验,一块只需要一次系统调用
+ * 返回的SubArray直接指向缓冲区中的整条日志[Size][LSN][Checksum][Data],不复制,下一次read之后就失效
+ * 缓冲区只装limit之前的字节,limit之后的位置可能还会被写,不能缓存
+ *
+ * 非线程安全,由使用者自己加锁
+ */
+class LogReader {
+    private final int segmentSize;
+    private final int chunkSize;
+
+    private byte[] buf;
+    private ByteBuffer bb;          // 包装buf,用来解析数字
+    private FileChannel chunkFc;    // 缓冲区里装的是哪个段
+    private long chunkIndex;
+    private long chunkOffset;       // 缓冲区开头在段内的偏移
+    private int chunkLen;
+
+    // chunkSize为0时每次只读需要的字节,用于随机读
+    LogReader(int segmentSize, int chunkSize) {
+        this.segmentSize = segmentSize;
+        this.chunkSize = chunkSize;
+        alloc(Math.max(chunkSize, LoggerImpl.OF_DATA));
+    }
+
+    private void alloc(int size) {
+        buf = new byte[size];
+        bb = ByteBuffer.wrap(buf);
+        chunkFc = null;
+        chunkLen = 0;
+    }
+
+    // 段被回收或者截断之后,缓冲区里的内容就不能再用了
+    void invalidate() {
+        chunkFc = null;
+        chunkLen = 0;
+    }
+
+    /**
+     * 读取段index中lsn处的一条完整日志
+     * 超出段或limit的范围、Size不合理、LSN对不上或者校验不通过都返回null
+     */
+    SubArray read(long index, FileChannel fc, long lsn, long limit) {
+        long segStart = index * segmentSize;
+        long offset = lsn - segStart;
+        long end = Math.min(segmentSize, limit - segStart);
+        if(offset + LoggerImpl.OF_DATA > end) {
+            return null;
+        }
+        if(!ensure(index, fc, offset, LoggerImpl.OF_DATA, end)) {
+            return null;
+        }
+        int p = (int)(offset - chunkOffset);
+        int size = bb.getInt(p + LoggerImpl.OF_SIZE) & ~LoggerImpl.COMPRESSED;
+        if(size <= 0 || offset + LoggerImpl.OF_DATA + size > end) {
+            return null;
+        }
+        if(bb.getLong(p + LoggerImpl.OF_LSN) != lsn) {
+            return null;
+        }
+        int len = LoggerImpl.OF_DATA + size;
+        if(!ensure(index, fc, offset, len, end)) {
+            return null;
+        }
+        p = (int)(offset - chunkOffset);
+        int checksum = LoggerImpl.calChecksum(buf, p, p + LoggerImpl.OF_CHECKSUM, p + LoggerImpl.OF_DATA, p + len);
+        if(checksum != bb.getInt(p + LoggerImpl.OF_CHECKSUM)) {
+            return null;
+        }
+        return new SubArray(buf, p, p + len);
+    }
+
+    // 保证段内[offset, offset+len)已经在缓冲区里,不够就从offset开始重新读一块
+    private boolean ensure(long index, FileChannel fc, long offset, int len, long end) {
+        if(chunkFc == fc && chunkIndex == index && offset >= chunkOffset && offset + len <= chunkOffset + chunkLen) {
+            return true;
+        }
+        int want = (int)Math.min(Math.max(chunkSize, len), end - offset);
+        if(want > buf.length) {
+            alloc(want);
+        }
+        ByteBuffer dst = ByteBuffer.wrap(buf, 0, want);
+        long pos = offset;
+        try {
+            while(dst.hasRemaining()) {
+                int n = fc.read(dst, pos);
+                if(n < 0) {
+                    break;
+                }
+                pos += n;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+        chunkFc = fc;
+        chunkIndex = index;
+        chunkOffset = offset;
+        chunkLen = dst.position();
+        return chunkLen >= len;
+    }
+}
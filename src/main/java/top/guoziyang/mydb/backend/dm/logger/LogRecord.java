@@ -0,0 +1,9 @@
+package top.guoziyang.mydb.backend.dm.logger;
+
+// 一条日志的内容,log时由日志系统直接编码进它的缓冲区,不需要先拼成一个byte[]
+public interface LogRecord {
+    // 编码后的字节数
+    int size();
+    // 把内容写到dst的off处,调用时持有日志系统的锁,不能再调用Logger
+    void encode(byte[] dst, int off);
+}
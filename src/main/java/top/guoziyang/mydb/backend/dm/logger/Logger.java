@@ -1,87 +1,83 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 
 import top.guoziyang.mydb.backend.utils.Panic;
-import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 // 日志系统,用于记录数据库的修改操作,以支持事务的原子性和持久性
 // 其实主要就是为了崩溃恢复服务的
-// 日志文件格式:
-// LOG_FILE_HEADER:
-// | 4 bytes |  --> logTail指针,指向日志文件的末尾
-// LOG_FILE_BODY:
-// | ...      |  --> 日志记录
-// [XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
+// 日志是一个目录,由若干个固定大小的段文件组成,格式见LoggerImpl
+// 每条日志: [Size][LSN][Checksum][Data]
 public interface Logger {
-    // [XChecksum][Log1][Log2][Log3]...[LogN][BadTail]
-    void log(byte[] data);
-    void truncate(long x) throws Exception;
+    // 追加一条日志,返回这条日志的LSN,返回时日志已经写进文件但不一定落盘
+    long log(byte[] data);
+    // 同上,rec直接编码进日志缓冲区
+    long log(LogRecord rec);
+    // 保证LSN不超过lsn的日志都已经落盘
+    void flush(long lsn);
+    // 回收完全位于lsn之前的日志段,检查点之后调用
+    void truncateBefore(long lsn);
+    // 下一条日志将要使用的LSN,在它之前的日志都已经log()过
+    long tailLsn();
     byte[] next();
+    // 上一次next()返回的日志的LSN
+    long readLsn();
+    // 读取lsn处的一条日志,不移动next()的读取指针,日志不存在或损坏时返回null
+    byte[] read(long lsn);
     void rewind();
+    // 把读取指针移到lsn,之后的next()从这条日志开始读
+    void seek(long lsn);
     void close();
 
     public static Logger create(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        try {
-            if(!f.createNewFile()) {
-                Panic.panic(Error.FileExistsException);
-            }
-        } catch (Exception e) {
-            Panic.panic(e);
+        return create(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    static Logger create(String path, int segmentSize) {
+        File dir = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(dir.exists()) {
+            Panic.panic(Error.FileExistsException);
         }
-        if(!f.canRead() || !f.canWrite()) {
+        if(!dir.mkdirs()) {
             Panic.panic(Error.FileCannotRWException);
         }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        ByteBuffer buf = ByteBuffer.wrap(Parser.int2Byte(0));
-        try {
-            fc.position(0);
-            fc.write(buf);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        if(!dir.canRead() || !dir.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
         }
 
-        return new LoggerImpl(raf, fc, 0);
+        LoggerImpl lg = new LoggerImpl(dir, segmentSize);
+        lg.initEmpty();
+        return lg;
     }
 
     public static Logger open(String path) {
-        File f = new File(path+LoggerImpl.LOG_SUFFIX);
-        if(!f.exists()) {
+        return open(path, LoggerImpl.DEFAULT_SEGMENT_SIZE);
+    }
+
+    static Logger open(String path, int segmentSize) {
+        File dir = new File(path+LoggerImpl.LOG_SUFFIX);
+        if(!dir.isDirectory()) {
             Panic.panic(Error.FileNotExistsException);
         }
-        if(!f.canRead() || !f.canWrite()) {
+        if(!dir.canRead() || !dir.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(f, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-           Panic.panic(e);
-        }
-
-        LoggerImpl lg = new LoggerImpl(raf, fc);
+        LoggerImpl lg = new LoggerImpl(dir, segmentSize);
         lg.init();
-
         return lg;
     }
+
+    // 删除整个日志目录
+    public static boolean remove(String path) {
+        File dir = new File(path+LoggerImpl.LOG_SUFFIX);
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files) {
+                f.delete();
+            }
+        }
+        return dir.delete();
+    }
 }
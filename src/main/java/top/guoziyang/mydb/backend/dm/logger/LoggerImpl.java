@@ -1,5 +1,6 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
@@ -7,221 +8,571 @@ import java.nio.channels.FileChannel;
 import java.util.Arrays;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
-import com.google.common.primitives.Bytes;
-
+import top.guoziyang.mydb.backend.common.LongObjectMap;
+import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.backend.utils.Parser;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 日志文件读写
- * 
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
- * 
+ *
+ * 日志是一个目录(path.log),里面是若干个固定大小的段文件 00000001.seg, 00000002.seg ...
+ * 所有段首尾相接组成一个逻辑上的日志流,日志在流中的字节位置就是它的LSN: LSN = 段号 * segmentSize + 段内偏移
+ * 段号从1开始,所以合法的LSN总是大于0
+ *
  * 每条正确日志的格式为：
- * [Size] [Checksum] [Data]
+ * [Size] [LSN] [Checksum] [Data]
  * Size 4字节int 标识Data长度,也就是所有要写入的字节都会放在Data中,相当于就是一种备份
- * Checksum 4字节int
+ *   最高位为1表示Data是压缩过的: [OrigSize 4字节][Deflate压缩后的数据],低31位是压缩后的长度
+ *   超过compressThreshold的日志先尝试压缩,压缩后更短才用,所以一个段里压缩和未压缩的日志可以混在一起
+ * LSN 8字节long 这条日志自己的LSN,读日志时必须和读取位置一致
+ * Checksum 4字节int Size、LSN和Data的CRC32C
+ * 一条日志不会跨段,段尾放不下时直接跳到下一个段的开头,段尾剩下的空间不用
+ *
+ * 打开日志时只需要检查最后一个段: 从段头开始逐条校验,第一条校验不过的位置就是日志的末尾,之后的坏尾巴被截掉
+ * 之前的段在切换到下一个段时已经force过,不会有坏尾巴
+ * 段号更大、但段头的LSN对不上的文件是回收来的旧段,日志写满当前段之后直接复用
+ *
+ * 检查点之后,truncateBefore(lsn)把完全位于lsn之前的段回收,改名成新的段号留给以后使用
  *
  * log文件本身在磁盘而不是内存中,所以每次读写都要进行IO操作
  * 你要知道:日志是数据库系统中非常重要的一部分,它记录了所有对数据库的修改操作
  * 在数据库崩溃后,可以通过日志进行恢复操作,确保数据的一致性和完整性,所以必须放在磁盘上
+ *
+ * 组提交(group commit):
+ * log()只把日志追加到内存中的pending缓冲区,同时为它分配LSN
+ * 随后由某一个调用者(leader)拿到写锁,把此刻缓冲区里所有线程攒下的日志一次write进段文件,其他调用者发现自己的日志已被写出就直接返回
+ * log()返回时日志已经在操作系统里,但还没有force;需要持久化时调用flush(lsn),同样由一个线程force一次,覆盖所有已写出的日志
+ * 写出的位置writtenLsn和已落盘的位置durableLsn都只增不减
  */
 public class LoggerImpl implements Logger {
-    // 计算Checksum的种子
-    private static final int SEED = 13331;
     // 日志各字段的偏移量
     // OF_SIZE: Size字段的偏移量
+    // OF_LSN: LSN字段的偏移量
     // OF_CHECKSUM: Checksum字段的偏移量
     // OF_DATA: Data字段的偏移量
-    private static final int OF_SIZE = 0;
-    private static final int OF_CHECKSUM = OF_SIZE + 4;
-    private static final int OF_DATA = OF_CHECKSUM + 4;
-    
+    static final int OF_SIZE = 0;
+    static final int OF_LSN = OF_SIZE + 4;
+    static final int OF_CHECKSUM = OF_LSN + 8;
+    static final int OF_DATA = OF_CHECKSUM + 4;
+
     public static final String LOG_SUFFIX = ".log";
+    static final String SEGMENT_SUFFIX = ".seg";
+    // 默认段大小16MB
+    static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+    // 最多保留几个回收来的空闲段,多余的直接删除
+    private static final int MAX_SPARE_SEGMENTS = 4;
+    // 顺序读日志时每次读入的块大小
+    private static final int READ_CHUNK_SIZE = 1 << 20;
+    private static final ThreadLocal<CRC32C> CRC = ThreadLocal.withInitial(CRC32C::new);
+    // Size字段中标记压缩的位
+    static final int COMPRESSED = 0x80000000;
+    // 默认超过1KB的日志尝试压缩
+    static final int DEFAULT_COMPRESS_THRESHOLD = 1 << 10;
+
+    // 压缩和解压用的缓冲区,每个线程一份,压缩在拿日志锁之前做
+    private static class Codec {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        Inflater inflater = new Inflater();
+        byte[] raw = new byte[1 << 12];
+        byte[] out = new byte[1 << 12];
+    }
+    private static final ThreadLocal<Codec> CODEC = ThreadLocal.withInitial(Codec::new);
+
+    // 一个段文件
+    private static class Segment {
+        long index;
+        File f;
+        RandomAccessFile file;
+        FileChannel fc;
+    }
+
+    private File dir;
+    private int segmentSize;
+
+    private Lock segLock;                   // 保护segments和段号范围
+    private LongObjectMap<Segment> segments;
+    private long firstIndex;                // 最早的一个还在使用的段
+    private long lastIndex;                 // 编号最大的段文件,可能是还没用到的空闲段
+    private volatile Segment current;       // 正在写的段
+
+    private Lock lock;          // 保护pending缓冲区和读日志的position
+    private Lock writeLock;     // 同一时刻只有一个线程把缓冲区写进文件
+    private Lock forceLock;     // 同一时刻只有一个线程force
+
+    private byte[] pending;     // 已经log()但还没有写进文件的日志
+    private int pendingLen;
+    private byte[] spare;       // 写出时和pending交换的备用缓冲区,只在持有writeLock时访问
+    private long appendLsn;     // pending末尾对应的LSN,即下一条日志可以开始的位置
+    private volatile long writtenLsn;   // 已经写进文件的位置
+    private volatile long durableLsn;   // 已经force的位置
 
-    private RandomAccessFile file;
-    private FileChannel fc;
-    private Lock lock;
+    private volatile int compressThreshold = DEFAULT_COMPRESS_THRESHOLD;    // 0表示不压缩
 
-    private long position;  // 当前日志指针的位置
-    private long fileSize;  // 初始化时记录，log操作不更新
-    private int xChecksum;
+    private long position;      // 读日志的指针
+    private long readLsn;       // 上一次next()读到的日志的LSN
+    private LogReader reader;       // 顺序读,只在持有lock时访问
+    private LogReader randomReader; // read(lsn)用,只在持有lock时访问
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc) {
-        this.file = raf;
-        this.fc = fc;
+    LoggerImpl(File dir, int segmentSize) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        segLock = new ReentrantLock();
+        segments = new LongObjectMap<>();
         lock = new ReentrantLock();
+        writeLock = new ReentrantLock();
+        forceLock = new ReentrantLock();
+        pending = new byte[1 << 12];
+        spare = new byte[1 << 12];
+        reader = new LogReader(segmentSize, Math.min(READ_CHUNK_SIZE, segmentSize));
+        randomReader = new LogReader(segmentSize, 0);
     }
 
-    LoggerImpl(RandomAccessFile raf, FileChannel fc, int xChecksum) {
-        this.file = raf;
-        this.fc = fc;
-        this.xChecksum = xChecksum;
-        lock = new ReentrantLock();
+    // 新建的日志只有一个空的段
+    void initEmpty() {
+        Segment seg = openSegment(1);
+        segments.put(1, seg);
+        firstIndex = lastIndex = 1;
+        current = seg;
+        resetLsn(segmentStart(1));
+        rewind();
     }
 
+    // 打开已有的日志,找到最后一个段并检查它的尾巴
     void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        if(size < 4) {
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_SUFFIX));
+        if(files == null || files.length == 0) {
             Panic.panic(Error.BadLogFileException);
         }
-
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
+        long[] indexes = new long[files.length];
+        for(int i = 0; i < files.length; i ++) {
+            String name = files[i].getName();
+            indexes[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+        }
+        Arrays.sort(indexes);
+        firstIndex = indexes[0];
+        lastIndex = indexes[indexes.length - 1];
+        for(long index : indexes) {
+            segments.put(index, openSegment(index));
         }
-        int xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
-        this.xChecksum = xChecksum;
 
-        checkAndRemoveTail();
+        // 段头的日志能对上LSN的最大段号就是日志的最后一个段,再往后的都是回收来的空闲段
+        Segment tail = segments.get(firstIndex);
+        for(int i = indexes.length - 1; i >= 0; i --) {
+            Segment seg = segments.get(indexes[i]);
+            if(reader.read(seg.index, seg.fc, segmentStart(indexes[i]), Long.MAX_VALUE) != null) {
+                tail = seg;
+                break;
+            }
+        }
+        current = tail;
+        checkAndRemoveTail(tail);
     }
 
-    // 检查并移除bad tail
-    private void checkAndRemoveTail() {
-        rewind();
-
-        int xCheck = 0;
-        // 遍历所有日志，计算checksum
+    // 检查并移除最后一个段的bad tail
+    private void checkAndRemoveTail(Segment tail) {
+        long lsn = segmentStart(tail.index);
         while(true) {
-            byte[] log = internNext();
+            SubArray log = reader.read(tail.index, tail.fc, lsn, Long.MAX_VALUE);
             if(log == null) break;
-            xCheck = calChecksum(xCheck, log);
+            lsn += log.end - log.start;
         }
-        // 对比checksum，不匹配和bad tail无关,因为有bad tail只是说明最后一条日志不完整
-        if(xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
-        }
-
+        // 缓冲区里可能装着坏尾巴,之后这些位置会写入新的日志
+        reader.invalidate();
         try {
             // 截断文件，移除bad tail
             // 这里的思想:没有成功写入log的话,我们就当它没发生过,直接把文件截断到最后一条完整日志的位置
-            truncate(position);
-        } catch (Exception e) {
+            tail.fc.truncate(lsn - segmentStart(tail.index));
+            tail.fc.force(false);
+        } catch (IOException e) {
             Panic.panic(e);
         }
+        resetLsn(lsn);
+        rewind();
+    }
+
+    // 日志文件的末尾确定之后,所有LSN都从这里开始
+    private void resetLsn(long end) {
+        appendLsn = end;
+        writtenLsn = end;
+        durableLsn = end;
+    }
+
+    private long segmentStart(long index) {
+        return index * segmentSize;
+    }
+
+    private long segmentIndex(long lsn) {
+        return lsn / segmentSize;
+    }
+
+    private File segmentFile(long index) {
+        return new File(dir, String.format("%08d", index) + SEGMENT_SUFFIX);
+    }
+
+    private Segment openSegment(long index) {
+        Segment seg = new Segment();
+        seg.index = index;
+        seg.f = segmentFile(index);
         try {
-            // 将文件指针移回position位置
-            file.seek(position);
+            seg.file = new RandomAccessFile(seg.f, "rw");
         } catch (IOException e) {
             Panic.panic(e);
         }
-        rewind();
+        seg.fc = seg.file.getChannel();
+        return seg;
     }
 
-    // 计算一条日志的checksum
-    private int calChecksum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    private Segment getSegment(long index) {
+        segLock.lock();
+        try {
+            return segments.get(index);
+        } finally {
+            segLock.unlock();
         }
-        return xCheck;
     }
 
     /**
      * 写入一条日志,我们把data包装成标准日志格式再写入文件
+     * 返回时日志已经写进文件,但不保证落盘,需要持久化时调用flush
      * @param data 要写入的日志数据
+     * @return 这条日志的LSN
      */
     @Override
-    public void log(byte[] data) {
-        byte[] log = wrapLog(data);
-        ByteBuffer buf = ByteBuffer.wrap(log);
-        lock.lock();
-        try {
-            fc.position(fc.size());
-            fc.write(buf);
-        } catch(IOException e) {
-            Panic.panic(e);
-        } finally {
-            lock.unlock();
+    public long log(byte[] data) {
+        int threshold = compressThreshold;
+        if(threshold > 0 && data.length >= threshold) {
+            Codec c = CODEC.get();
+            int n = compress(c, data, data.length);
+            if(n > 0) {
+                return append(n, c.out, null, true);
+            }
+        }
+        return append(data.length, data, null, false);
+    }
+
+    @Override
+    public long log(LogRecord rec) {
+        int size = rec.size();
+        int threshold = compressThreshold;
+        if(threshold > 0 && size >= threshold) {
+            // 大日志先编码到线程自己的缓冲区里再压缩,压缩不划算就直接用编码好的内容
+            Codec c = CODEC.get();
+            if(c.raw.length < size) {
+                c.raw = new byte[size];
+            }
+            rec.encode(c.raw, 0);
+            int n = compress(c, c.raw, size);
+            if(n > 0) {
+                return append(n, c.out, null, true);
+            }
+            return append(size, c.raw, null, false);
+        }
+        return append(size, null, rec, false);
+    }
+
+    void setCompressThreshold(int threshold) {
+        compressThreshold = threshold;
+    }
+
+    /**
+     * 把raw的前len个字节压缩成[OrigSize][Deflate数据]放进c.out
+     * 返回压缩后的长度,不比原来短时返回-1
+     */
+    private static int compress(Codec c, byte[] raw, int len) {
+        if(c.out.length < len) {
+            c.out = new byte[len];
+        }
+        Parser.putInt(c.out, 0, len);
+        Deflater d = c.deflater;
+        d.reset();
+        d.setInput(raw, 0, len);
+        d.finish();
+        int n = 4;
+        while(!d.finished() && n < len) {
+            n += d.deflate(c.out, n, len - n);
         }
-        // 每次写入一条新的日志后,都要更新xChecksum
-        updateXChecksum(log);
+        return d.finished() && n < len ? n : -1;
     }
 
-    // 更新XChecksum
-    private void updateXChecksum(byte[] log) {
-        // 每次都会加入新日志,所以要基于旧的xChecksum计算新的xChecksum
-        this.xChecksum = calChecksum(this.xChecksum, log);
+    // 取出一条完整日志的Data部分,压缩过的先解压
+    private static byte[] payload(SubArray log) {
+        int size = Parser.parseInt(log.raw, log.start + OF_SIZE);
+        if((size & COMPRESSED) == 0) {
+            return Arrays.copyOfRange(log.raw, log.start + OF_DATA, log.end);
+        }
+        int dataStart = log.start + OF_DATA;
+        byte[] data = new byte[Parser.parseInt(log.raw, dataStart)];
+        Inflater inf = CODEC.get().inflater;
+        inf.reset();
+        inf.setInput(log.raw, dataStart + 4, log.end - dataStart - 4);
         try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.int2Byte(xChecksum)));
-            // 计算出来的xChecksum写入文件头后,强制写入磁盘
-            fc.force(false);
-        } catch(IOException e) {
+            int n = 0;
+            while(n < data.length && !inf.finished()) {
+                int k = inf.inflate(data, n, data.length - n);
+                if(k == 0 && (inf.needsInput() || inf.needsDictionary())) {
+                    break;
+                }
+                n += k;
+            }
+            if(n != data.length) {
+                Panic.panic(Error.BadLogFileException);
+            }
+        } catch(DataFormatException e) {
             Panic.panic(e);
         }
-    }
-    // 将data包装成标准日志格式
-    private byte[] wrapLog(byte[] data) {
-        // 计算Checksum和Size
-        byte[] checksum = Parser.int2Byte(calChecksum(0, data));
-        byte[] size = Parser.int2Byte(data.length);
-        // 拼接字节数组并返回
-        return Bytes.concat(size, checksum, data);
+        return data;
     }
 
-    // 截断日志文件
-    @Override
-    public void truncate(long x) throws Exception {
+    // data和rec二选一,日志内容直接写进pending,不经过中间数组
+    private long append(int size, byte[] data, LogRecord rec, boolean compressed) {
+        int len = OF_DATA + size;
+        if(len > segmentSize) {
+            Panic.panic(Error.DataTooLargeException);
+        }
+        long lsn;
         lock.lock();
         try {
-            fc.truncate(x);
+            lsn = appendLsn;
+            // 段尾放不下就从下一个段的开头开始
+            if(lsn % segmentSize + len > segmentSize) {
+                lsn = segmentStart(segmentIndex(lsn) + 1);
+            }
+            if(pendingLen + len > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length << 1, pendingLen + len));
+            }
+            if(rec != null) {
+                rec.encode(pending, pendingLen + OF_DATA);
+            } else {
+                System.arraycopy(data, 0, pending, pendingLen + OF_DATA, size);
+            }
+            wrapLog(size, compressed, lsn, pending, pendingLen);
+            pendingLen += len;
+            appendLsn = lsn + len;
         } finally {
             lock.unlock();
         }
+        writeUpTo(lsn + 1);
+        return lsn;
     }
 
-    // 采用类似迭代器的方式读取下一条日志
-    // 返回包含Size, Checksum, Data的完整日志
-    private byte[] internNext() {
-        // 检查是否还能读取Size
-        if(position + OF_DATA >= fileSize) {
-            return null;
+    /**
+     * 保证lsn之前的日志都已经写进文件
+     * 拿到写锁的线程把缓冲区里所有的日志一起写出,等在写锁上的其他线程多半会发现自己的日志已经被顺带写出了
+     */
+    private void writeUpTo(long lsn) {
+        if(writtenLsn >= lsn) {
+            return;
+        }
+        writeLock.lock();
+        try {
+            if(writtenLsn >= lsn) {
+                return;
+            }
+            byte[] batch;
+            int len;
+            long end;
+            lock.lock();
+            try {
+                batch = pending;
+                len = pendingLen;
+                end = appendLsn;
+                pending = spare;
+                pendingLen = 0;
+            } finally {
+                lock.unlock();
+            }
+            writeBatch(batch, len);
+            spare = batch;
+            writtenLsn = end;
+        } finally {
+            writeLock.unlock();
         }
-        // 读取Size
-        ByteBuffer tmp = ByteBuffer.allocate(4);
+    }
+
+    // 把一批首尾相接的日志写进段文件,同一个段里连续的日志合并成一次write
+    private void writeBatch(byte[] batch, int len) {
+        int off = 0;
+        while(off < len) {
+            long lsn = Parser.parseLong(batch, off + OF_LSN);
+            long index = segmentIndex(lsn);
+            int end = off;
+            while(end < len) {
+                long l = Parser.parseLong(batch, end + OF_LSN);
+                if(segmentIndex(l) != index) {
+                    break;
+                }
+                end += OF_DATA + (Parser.parseInt(batch, end + OF_SIZE) & ~COMPRESSED);
+            }
+            if(index != current.index) {
+                switchSegment(index);
+            }
+            try {
+                ByteBuffer buf = ByteBuffer.wrap(batch, off, end - off);
+                long offset = lsn - segmentStart(index);
+                while(buf.hasRemaining()) {
+                    offset += current.fc.write(buf, offset);
+                }
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+            off = end;
+        }
+    }
+
+    /**
+     * 切换到下一个段,调用时持有writeLock
+     * 旧的段先force,保证打开日志时只有最后一个段可能有坏尾巴
+     */
+    private void switchSegment(long index) {
         try {
-            // 把size的大小读取到tmp中
-            fc.position(position);
-            fc.read(tmp);
+            current.fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         }
-        // 转成int
-        int size = Parser.parseInt(tmp.array());
-        if(position + size + OF_DATA > fileSize) {
-            return null;
+        Segment seg;
+        segLock.lock();
+        try {
+            seg = segments.get(index);
+            if(seg == null) {
+                // 没有回收来的空闲段,新建一个并预先分配好空间
+                seg = openSegment(index);
+                try {
+                    seg.file.setLength(segmentSize);
+                } catch(IOException e) {
+                    Panic.panic(e);
+                }
+                segments.put(index, seg);
+                lastIndex = index;
+            }
+        } finally {
+            segLock.unlock();
         }
-        // 读取完整日志中的Data
-        ByteBuffer buf = ByteBuffer.allocate(OF_DATA + size);
+        current = seg;
+    }
+
+    /**
+     * 保证LSN不超过lsn的日志都已经落盘
+     * 同一时刻只有一个线程在force,它force的时候会把所有已经写出的日志一起落盘,后面排队的线程多半直接返回
+     */
+    @Override
+    public void flush(long lsn) {
+        flushTo(lsn + 1);
+    }
+
+    // 保证end之前的日志都已经落盘
+    private void flushTo(long end) {
+        if(durableLsn >= end) {
+            return;
+        }
+        writeUpTo(end);
+        forceLock.lock();
         try {
-            fc.position(position);
-            fc.read(buf);
+            if(durableLsn >= end) {
+                return;
+            }
+            // 先取写出的位置再取当前段: 切换段时旧段已经force过,当前段之前的日志都已落盘
+            long target = writtenLsn;
+            current.fc.force(false);
+            durableLsn = target;
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            forceLock.unlock();
         }
-        // 验证Checksum, 不通过则返回null
-        byte[] log = buf.array();
-        int checkSum1 = calChecksum(0, Arrays.copyOfRange(log, OF_DATA, log.length));
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OF_CHECKSUM, OF_DATA));
-        if(checkSum1 != checkSum2) {
-            return null;
+    }
+
+    // Data已经在dst的off+OF_DATA处,补上Size, LSN和Checksum,成为标准日志格式
+    private void wrapLog(int size, boolean compressed, long lsn, byte[] dst, int off) {
+        Parser.putInt(dst, off + OF_SIZE, compressed ? size | COMPRESSED : size);
+        Parser.putLong(dst, off + OF_LSN, lsn);
+        int checksum = calChecksum(dst, off, off + OF_CHECKSUM, off + OF_DATA, off + OF_DATA + size);
+        Parser.putInt(dst, off + OF_CHECKSUM, checksum);
+    }
+
+    // 计算[start, mid)和[dataStart, end)两段字节的CRC32C,跳过中间的Checksum字段
+    static int calChecksum(byte[] raw, int start, int mid, int dataStart, int end) {
+        CRC32C crc = CRC.get();
+        crc.reset();
+        crc.update(raw, start, mid - start);
+        crc.update(raw, dataStart, end - dataStart);
+        return (int)crc.getValue();
+    }
+
+    /**
+     * 回收所有完全位于lsn之前的段
+     * 检查点之后,恢复不会再读lsn之前的日志,这些段改名成新的段号,留给以后写日志时复用
+     */
+    @Override
+    public void truncateBefore(long lsn) {
+        long keep = Math.min(segmentIndex(lsn), current.index);
+        while(true) {
+            Segment seg;
+            long newIndex;
+            segLock.lock();
+            try {
+                if(firstIndex >= keep) {
+                    return;
+                }
+                seg = segments.remove(firstIndex);
+                firstIndex ++;
+                newIndex = lastIndex + 1;
+                if(lastIndex - current.index < MAX_SPARE_SEGMENTS) {
+                    lastIndex = newIndex;
+                } else {
+                    newIndex = -1;
+                }
+            } finally {
+                segLock.unlock();
+            }
+            try {
+                seg.fc.close();
+                seg.file.close();
+            } catch(IOException e) {
+                Panic.panic(e);
+            }
+            if(newIndex < 0) {
+                seg.f.delete();
+                continue;
+            }
+            // 段头的日志LSN对不上新的段号,所以复用之前不会被当成有效日志
+            File target = segmentFile(newIndex);
+            if(!seg.f.renameTo(target)) {
+                Panic.panic(Error.FileCannotRWException);
+            }
+            Segment spareSeg = openSegment(newIndex);
+            segLock.lock();
+            try {
+                segments.put(newIndex, spareSeg);
+            } finally {
+                segLock.unlock();
+            }
         }
-        // 移动position指针,返回日志,现在position指向下一条日志的开头
-        position += log.length;
-        return log;
+    }
+
+    // 采用类似迭代器的方式读取下一条日志
+    // 返回包含Size, LSN, Checksum, Data的完整日志,指向reader的缓冲区
+    private SubArray internNext() {
+        long limit = writtenLsn;
+        while(position < limit) {
+            Segment seg = getSegment(segmentIndex(position));
+            SubArray log = seg == null ? null : reader.read(seg.index, seg.fc, position, limit);
+            if(log != null) {
+                // 移动position指针,返回日志,现在position指向下一条日志的开头
+                readLsn = position;
+                position += log.end - log.start;
+                return log;
+            }
+            // 段尾放不下的空间,跳到下一个段的开头
+            position = segmentStart(segmentIndex(position) + 1);
+        }
+        return null;
     }
 
     // 这里是调用internNext并只返回Data部分
@@ -229,9 +580,39 @@ public class LoggerImpl implements Logger {
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
+            SubArray log = internNext();
             if(log == null) return null;
-            return Arrays.copyOfRange(log, OF_DATA, log.length);
+            return payload(log);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long readLsn() {
+        lock.lock();
+        try {
+            return readLsn;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public byte[] read(long lsn) {
+        long limit = writtenLsn;
+        if(lsn <= 0 || lsn >= limit) {
+            return null;
+        }
+        Segment seg = getSegment(segmentIndex(lsn));
+        if(seg == null) {
+            return null;
+        }
+        lock.lock();
+        try {
+            SubArray log = randomReader.read(seg.index, seg.fc, lsn, limit);
+            if(log == null) return null;
+            return payload(log);
         } finally {
             lock.unlock();
         }
@@ -241,17 +622,54 @@ public class LoggerImpl implements Logger {
     // rewind本身的语义是指磁带倒带,这里借用这个词,表示将日志读取指针重置到开头
     @Override
     public void rewind() {
-        position = 4;
+        segLock.lock();
+        try {
+            position = segmentStart(firstIndex);
+        } finally {
+            segLock.unlock();
+        }
+    }
+
+    @Override
+    public void seek(long lsn) {
+        lock.lock();
+        try {
+            position = Math.max(lsn, segmentStart(firstIndex));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public long tailLsn() {
+        lock.lock();
+        try {
+            return appendLsn;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     public void close() {
+        lock.lock();
+        long end = appendLsn;
+        lock.unlock();
+        flushTo(end);
+        segLock.lock();
         try {
-            fc.close();
-            file.close();
+            for(int i = 0; i < segments.capacity(); i ++) {
+                if(segments.isUsed(i)) {
+                    Segment seg = segments.valueAt(i);
+                    seg.fc.close();
+                    seg.file.close();
+                }
+            }
         } catch(IOException e) {
             Panic.panic(e);
+        } finally {
+            segLock.unlock();
         }
     }
-    
+
 }
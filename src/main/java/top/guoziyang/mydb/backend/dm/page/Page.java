@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 // 页面接口,定义了页面的基本操作
 public interface Page {
     void lock();
@@ -8,5 +10,14 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
+    // 页面数据所在的堆数组,只有堆模式的页面才有,堆外页面会抛出UnsupportedOperationException
     byte[] getData();
+    // 页面数据的缓冲区视图,两种页面都支持,多个线程共享同一个缓冲区,只能用绝对位置的get/put访问
+    ByteBuffer getBuffer();
+    // 最后一条修改过该页面的日志的LSN,只在内存中记录,页面写回前日志要先落盘到这里
+    long getLsn();
+    // 只会往大了更新,页面干净时第一次设置的LSN同时记为recLsn
+    void setLsn(long lsn);
+    // 页面从干净变脏之后第一条修改它的日志的LSN,恢复时从这里开始重做就不会漏掉这个页面的修改,页面写回(setDirty(false))后清零
+    long getRecLsn();
 }
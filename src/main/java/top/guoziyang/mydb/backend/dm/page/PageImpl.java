@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -9,10 +11,16 @@ import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 public class PageImpl implements Page {
     // 页面编号,从1开始
     private int pageNumber;
-    // 页面实际包含的数据
+    // 页面实际包含的数据,堆外页面为null
     private byte[] data;
+    // 页面数据的缓冲区视图,堆模式下包裹data,堆外模式下是帧池里的一个帧
+    private ByteBuffer buffer;
     // 页面是否被修改过
     private boolean dirty;
+    // 最后一条修改过该页面的日志的LSN
+    private AtomicLong lsn = new AtomicLong(0);
+    // 页面变脏之后第一条修改它的日志的LSN
+    private AtomicLong recLsn = new AtomicLong(0);
     // 保护页面的锁
     private Lock lock;
 
@@ -22,6 +30,15 @@ public class PageImpl implements Page {
     public PageImpl(int pageNumber, byte[] data, PageCache pc) {
         this.pageNumber = pageNumber;
         this.data = data;
+        this.buffer = ByteBuffer.wrap(data);
+        this.pc = pc;
+        lock = new ReentrantLock();
+    }
+
+    // 堆外页面,数据直接放在页面缓存分配的帧里
+    public PageImpl(int pageNumber, ByteBuffer frame, PageCache pc) {
+        this.pageNumber = pageNumber;
+        this.buffer = frame;
         this.pc = pc;
         lock = new ReentrantLock();
     }
@@ -40,6 +57,9 @@ public class PageImpl implements Page {
 
     public void setDirty(boolean dirty) {
         this.dirty = dirty;
+        if(!dirty) {
+            recLsn.set(0);
+        }
     }
 
     public boolean isDirty() {
@@ -51,7 +71,28 @@ public class PageImpl implements Page {
     }
 
     public byte[] getData() {
+        if(data == null) {
+            throw new UnsupportedOperationException("Page " + pageNumber + " is not backed by a heap array");
+        }
         return data;
     }
 
+    public ByteBuffer getBuffer() {
+        return buffer;
+    }
+
+    public long getLsn() {
+        return lsn.get();
+    }
+
+    // 同一页上的不同记录可能并发写日志,LSN取较大的那个
+    public void setLsn(long lsn) {
+        this.lsn.accumulateAndGet(lsn, Math::max);
+        this.recLsn.compareAndSet(0, lsn);
+    }
+
+    public long getRecLsn() {
+        return recLsn.get();
+    }
+
 }
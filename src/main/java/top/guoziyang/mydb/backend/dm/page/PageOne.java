@@ -1,5 +1,6 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
@@ -11,12 +12,15 @@ import top.guoziyang.mydb.backend.utils.RandomUtil;
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭,如果没有正常关闭，则说明可能有未刷新的数据，需要进行恢复
  * 恢复就是利用日志将未刷新的数据重新写入页面
+ * 116~123字节存放最近一次检查点日志的LSN,0表示还没有做过检查点,恢复时从这里找到检查点
  */
 public class PageOne {
     // VC: Valid Check,100是字节偏移,8字节长度,偏移100是为了避开常用的元数据区域
     private static final int OF_VC = 100;
     // VC长度8字节
     private static final int LEN_VC = 8;
+    // 最近一次检查点的LSN
+    private static final int OF_CKPT = OF_VC + 2*LEN_VC;
 
     // 初始化第一页,设置为打开状态
     public static byte[] InitRaw() {
@@ -28,7 +32,9 @@ public class PageOne {
     // 设置VC为打开状态,写入随机字节
     public static void setVcOpen(Page pg) {
         pg.setDirty(true);
-        setVcOpen(pg.getData());
+        ByteBuffer buf = pg.getBuffer().duplicate();
+        buf.position(OF_VC);
+        buf.put(RandomUtil.randomBytes(LEN_VC));
     }
 
     // 设置VC为打开状态,写入随机字节
@@ -39,20 +45,23 @@ public class PageOne {
     // 设置VC为关闭状态,将前8字节拷贝到后8字节
     public static void setVcClose(Page pg) {
         pg.setDirty(true);
-        setVcClose(pg.getData());
+        ByteBuffer buf = pg.getBuffer();
+        buf.putLong(OF_VC+LEN_VC, buf.getLong(OF_VC));
     }
 
-    private static void setVcClose(byte[] raw) {
-        System.arraycopy(raw, OF_VC, raw, OF_VC+LEN_VC, LEN_VC);
+    // 记录最近一次检查点日志的LSN,调用者负责把第一页刷盘
+    public static void setCheckpoint(Page pg, long lsn) {
+        pg.setDirty(true);
+        pg.getBuffer().putLong(OF_CKPT, lsn);
     }
 
-    // 检查VC是否是合法的关闭状态
-    public static boolean checkVc(Page pg) {
-        return checkVc(pg.getData());
+    public static long getCheckpoint(Page pg) {
+        return pg.getBuffer().getLong(OF_CKPT);
     }
 
     // 检查VC是否是合法的关闭状态
-    private static boolean checkVc(byte[] raw) {
-        return Arrays.equals(Arrays.copyOfRange(raw, OF_VC, OF_VC+LEN_VC), Arrays.copyOfRange(raw, OF_VC+LEN_VC, OF_VC+2*LEN_VC));
+    public static boolean checkVc(Page pg) {
+        ByteBuffer buf = pg.getBuffer();
+        return buf.getLong(OF_VC) == buf.getLong(OF_VC+LEN_VC);
     }
 }
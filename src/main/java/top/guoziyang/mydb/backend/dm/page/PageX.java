@@ -1,6 +1,6 @@
 package top.guoziyang.mydb.backend.dm.page;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.utils.Parser;
@@ -8,50 +8,78 @@ import top.guoziyang.mydb.backend.utils.Parser;
 /**
  * PageX管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 8字节 最后一条修改过该页面的日志的LSN,随页面一起落盘
+ *   恢复时LSN不超过它的日志已经在页面里了,直接跳过,这样不能重复执行的日志(比如Move Log)也可以安全地重做
  * Data: 剩余空间 用于存放记录等数据
- * 最大空闲空间: PageCache.PAGE_SIZE - 2
+ * 最大空闲空间: PageCache.PAGE_SIZE - 10
  * 一个页面的大小是8KB,前2字节最表示的偏移是足够的,因为2^15=32768,8KB远小于32768
+ * 页面的读写都通过Page.getBuffer()完成,堆模式和堆外模式的页面都适用
  */
 public class PageX {
     
     private static final short OF_FREE = 0;
-    private static final short OF_DATA = 2;
+    private static final short OF_LSN = OF_FREE + 2;
+    private static final short OF_DATA = OF_LSN + 8;
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OF_DATA;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFSO(raw, OF_DATA);
+        Parser.putShort(raw, OF_FREE, OF_DATA);
         return raw;
     }
 
-    private static void setFSO(byte[] raw, short ofData) {
-        System.arraycopy(Parser.short2Byte(ofData), 0, raw, OF_FREE, OF_DATA);
+    public static long getPageLsn(Page pg) {
+        return pg.getBuffer().getLong(OF_LSN);
+    }
+
+    // 只会往大了更新,修改同一页面不同记录的线程可能同时调用
+    public static void setPageLsn(Page pg, long lsn) {
+        pg.lock();
+        try {
+            if(getPageLsn(pg) < lsn) {
+                pg.getBuffer().putLong(OF_LSN, lsn);
+            }
+        } finally {
+            pg.unlock();
+        }
+    }
+
+    private static void setFSO(ByteBuffer buf, short ofData) {
+        buf.putShort(OF_FREE, ofData);
     }
 
     // 获取pg的FSO
     public static short getFSO(Page pg) {
-        return getFSO(pg.getData());
+        return getFSO(pg.getBuffer());
+    }
+
+    private static short getFSO(ByteBuffer buf) {
+        return buf.getShort(OF_FREE);
     }
 
-    private static short getFSO(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, 0, 2));
+    // 把raw拷贝到页面的offset处,缓冲区是共享的,所以在副本上移动position
+    private static void putRaw(ByteBuffer buf, byte[] raw, int offset) {
+        ByteBuffer dup = buf.duplicate();
+        dup.position(offset);
+        dup.put(raw);
     }
 
     // 将raw插入pg中，返回插入位置
     public static short insert(Page pg, byte[] raw) {
         pg.setDirty(true);
-        short offset = getFSO(pg.getData());
+        ByteBuffer buf = pg.getBuffer();
+        short offset = getFSO(buf);
         // 要拷贝多少字节到目标位置
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
-        setFSO(pg.getData(), (short)(offset + raw.length));
+        putRaw(buf, raw, offset);
+        setFSO(buf, (short)(offset + raw.length));
         return offset;
     }
 
     // 获取页面的空闲空间大小
     public static int getFreeSpace(Page pg) {
-        return PageCache.PAGE_SIZE - (int)getFSO(pg.getData());
+        return PageCache.PAGE_SIZE - (int)getFSO(pg.getBuffer());
     }
 
     // 之后的两个方法都是用于恢复时使用的
@@ -59,18 +87,39 @@ public class PageX {
     // 将raw插入pg中的offset位置，并将pg的offset设置为较大的offset,因为你在恢复,但是你不知道之前写入了多少数据
     public static void recoverInsert(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        ByteBuffer buf = pg.getBuffer();
+        putRaw(buf, raw, offset);
         // 这里更新的目的是防止后续插入覆盖掉刚刚恢复的数据
-        short rawFSO = getFSO(pg.getData());
+        short rawFSO = getFSO(buf);
         if(rawFSO < offset + raw.length) {
-            setFSO(pg.getData(), (short)(offset+raw.length));
+            setFSO(buf, (short)(offset+raw.length));
         }
     }
 
     // 将raw插入pg中的offset位置，不更新offset,因为之前进行的操作是update,不存在offset移动的问题
     public static void recoverUpdate(Page pg, byte[] raw, short offset) {
         pg.setDirty(true);
-        System.arraycopy(raw, 0, pg.getData(), offset, raw.length);
+        putRaw(pg.getBuffer(), raw, offset);
+    }
+
+    // 把页面中[from, from+len)整体移到to,区间可以重叠
+    public static void recoverMove(Page pg, short from, short to, int len) {
+        pg.setDirty(true);
+        ByteBuffer buf = pg.getBuffer();
+        byte[] tmp = new byte[len];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(from);
+        dup.get(tmp);
+        dup.position(to);
+        dup.put(tmp);
+    }
+
+    // 同上,写入的是raw中从rawOff开始的len个字节
+    public static void recoverUpdate(Page pg, byte[] raw, int rawOff, int len, short offset) {
+        pg.setDirty(true);
+        ByteBuffer dup = pg.getBuffer().duplicate();
+        dup.position(offset);
+        dup.put(raw, rawOff, len);
     }
 
     // TODO delete操作怎么恢复?
@@ -0,0 +1,62 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 堆外页帧池
+ * 启动时一次性分配一块(或几块)直接内存,切成PAGE_SIZE大小的帧
+ * 页面缓存未命中时取一个空闲帧,FileChannel直接读进帧里,页面被驱逐后帧还回池中给下一个页面复用
+ * 这样缓冲池的页面数据不在Java堆上,不会给GC带来压力
+ */
+class FramePool {
+    // 单块直接内存的上限,allocateDirect的容量是int,按1GB切分
+    private static final int MAX_CHUNK = 1 << 30;
+
+    private ArrayDeque<ByteBuffer> free;
+    private Lock lock;
+
+    FramePool(int frames) {
+        free = new ArrayDeque<>(frames);
+        lock = new ReentrantLock();
+        int framesPerChunk = MAX_CHUNK / PageCache.PAGE_SIZE;
+        while(frames > 0) {
+            int n = Math.min(frames, framesPerChunk);
+            ByteBuffer arena = ByteBuffer.allocateDirect(n * PageCache.PAGE_SIZE);
+            for(int i = 0; i < n; i ++) {
+                arena.limit((i + 1) * PageCache.PAGE_SIZE);
+                arena.position(i * PageCache.PAGE_SIZE);
+                free.add(arena.slice());
+            }
+            frames -= n;
+        }
+    }
+
+    // 取一个空闲帧,帧的数量和缓存容量相同,正常情况下不会取空,万一取空就临时分配一个
+    ByteBuffer acquire() {
+        ByteBuffer frame;
+        lock.lock();
+        try {
+            frame = free.poll();
+        } finally {
+            lock.unlock();
+        }
+        if(frame == null) {
+            return ByteBuffer.allocateDirect(PageCache.PAGE_SIZE);
+        }
+        frame.clear();
+        return frame;
+    }
+
+    // 归还一个帧
+    void release(ByteBuffer frame) {
+        lock.lock();
+        try {
+            free.push(frame);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+import top.guoziyang.mydb.backend.utils.Panic;
+
+/**
+ * 内存映射模式的页面缓存
+ * 数据库文件按SEGMENT_SIZE切成若干段,每段用一个MappedByteBuffer映射,读页面只是从映射里拷贝8KB,不需要read系统调用
+ * 注意这是拷贝式的读路径: 页面仍然像MODE_HEAP一样拷进堆上的byte[],由父类按-mem缓存和驱逐,
+ * 并不是直接把映射当作页面使用(DataItem等上层依赖Page.getData()返回的byte[]).
+ * 所以它省掉的只是read/write系统调用,不会省内存,OS页缓存和堆上的页面各有一份
+ *
+ * 映射的长度不会超过映射时的文件长度(READ_WRITE映射越过文件末尾会把文件撑大),
+ * newPage仍然通过FileChannel追加写,访问到映射之外的页面时再重新映射该段
+ * 写回时把页面拷进映射,刷盘时force所在的段,Java 11的MappedByteBuffer没有按范围force的接口,所以段不宜过大
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    // 每段映射的大小,16MB,即2048页
+    static final int SEGMENT_SIZE = 1 << 24;
+    private static final int PAGES_PER_SEGMENT = SEGMENT_SIZE / PAGE_SIZE;
+
+    private FileChannel fc;
+    // 每段的映射,还没有映射的段为null
+    private MappedByteBuffer[] segments;
+    // 保护segments数组本身,映射内容的读写各自在副本上进行
+    private Lock mapLock;
+
+    MappedPageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
+        super(file, fileChannel, maxResource, MODE_HEAP);
+        this.fc = fileChannel;
+        this.segments = new MappedByteBuffer[16];
+        this.mapLock = new ReentrantLock();
+    }
+
+    // 已经映射了该页的段,不会重新映射
+    private MappedByteBuffer mappedSegmentOf(int pgno) {
+        int idx = (pgno - 1) / PAGES_PER_SEGMENT;
+        int end = ((pgno - 1) % PAGES_PER_SEGMENT + 1) * PAGE_SIZE;
+        mapLock.lock();
+        try {
+            if(idx >= segments.length || segments[idx] == null || segments[idx].capacity() < end) {
+                return null;
+            }
+            return segments[idx];
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    // 页面所在段的映射,映射不到该页时重新映射
+    private MappedByteBuffer segmentOf(int pgno) {
+        int idx = (pgno - 1) / PAGES_PER_SEGMENT;
+        int end = ((pgno - 1) % PAGES_PER_SEGMENT + 1) * PAGE_SIZE;
+        mapLock.lock();
+        try {
+            if(idx >= segments.length) {
+                segments = Arrays.copyOf(segments, Math.max(segments.length << 1, idx + 1));
+            }
+            MappedByteBuffer seg = segments[idx];
+            if(seg == null || seg.capacity() < end) {
+                // 文件已经长过原来的映射,按当前文件长度重新映射这一段
+                long start = (long)idx * SEGMENT_SIZE;
+                long size = Math.min(SEGMENT_SIZE, fc.size() - start);
+                if(size < end) {
+                    return null;
+                }
+                seg = fc.map(FileChannel.MapMode.READ_WRITE, start, size);
+                segments[idx] = seg;
+            }
+            return seg;
+        } catch(IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            mapLock.unlock();
+        }
+    }
+
+    private static int offsetInSegment(int pgno) {
+        return ((pgno - 1) % PAGES_PER_SEGMENT) * PAGE_SIZE;
+    }
+
+    @Override
+    protected void read(int pgno, ByteBuffer buf) {
+        MappedByteBuffer seg = segmentOf(pgno);
+        if(seg == null) {
+            // 页面超出了文件末尾,和普通模式一样读到的是空页
+            return;
+        }
+        ByteBuffer src = seg.duplicate();
+        src.position(offsetInSegment(pgno));
+        src.limit(src.position() + PAGE_SIZE);
+        buf.put(src);
+    }
+
+    @Override
+    protected void write(int pgno, ByteBuffer buf) {
+        MappedByteBuffer seg = segmentOf(pgno);
+        if(seg == null) {
+            // 新页面还在文件末尾之外,通过FileChannel追加
+            super.write(pgno, buf);
+            return;
+        }
+        ByteBuffer dst = seg.duplicate();
+        dst.position(offsetInSegment(pgno));
+        dst.put(buf);
+    }
+
+    @Override
+    protected void force(int pgno) {
+        MappedByteBuffer seg = mappedSegmentOf(pgno);
+        if(seg == null) {
+            // 这一页是通过FileChannel写的
+            super.force(pgno);
+            return;
+        }
+        seg.force();
+    }
+
+    @Override
+    protected void forceAll() {
+        MappedByteBuffer[] segs;
+        mapLock.lock();
+        try {
+            segs = segments.clone();
+        } finally {
+            mapLock.unlock();
+        }
+        for(MappedByteBuffer seg : segs) {
+            if(seg != null) {
+                seg.force();
+            }
+        }
+        super.forceAll();
+    }
+
+    @Override
+    public void truncateByBgno(int maxPgno) {
+        // 截断后的文件末尾之外不能再访问映射,丢掉所有映射,之后按新的文件长度重新映射
+        mapLock.lock();
+        try {
+            Arrays.fill(segments, null);
+        } finally {
+            mapLock.unlock();
+        }
+        super.truncateByBgno(maxPgno);
+    }
+}
@@ -4,7 +4,10 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.RandomAccessFile;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 
+import top.guoziyang.mydb.backend.common.LongLongMap;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.utils.Panic;
 import top.guoziyang.mydb.common.Error;
@@ -14,12 +17,28 @@ public interface PageCache {
     // 页面大小为8KB,这是数据库系统中常用的页面大小
     public static final int PAGE_SIZE = 1 << 13;
 
+    // 页面数据放在Java堆上的byte[]里,默认模式
+    public static final int MODE_HEAP = 0;
+    // 页面数据放在堆外的页帧池里,读写都通过Page.getBuffer(),还不支持依赖getData()的DataItem,DataManager会拒绝这个模式
+    public static final int MODE_DIRECT = 1;
+    // 数据库文件整体内存映射,页面读写变成对映射的拷贝,页面本身仍是堆上的byte[],见MappedPageCacheImpl
+    public static final int MODE_MMAP = 2;
+    // 写回模式标志,可以和上面的模式组合使用,如 MODE_HEAP | WRITE_BACK
+    // 脏页写回时不再逐页force,由后台线程批量写回后统一force一次,页面的持久性依赖先于页面落盘的日志
+    public static final int WRITE_BACK = 1 << 4;
+
     // 创建新页面,返回页面编号
     int newPage(byte[] initData);
     // 获取页面,根据页面编号返回页面对象
     Page getPage(int pgno) throws Exception;
+    // 异步获取页面,页面在IO线程上加载,拿到之后同样需要release
+    CompletableFuture<Page> getPageAsync(int pgno);
+    // 提示页面缓存在后台把这些页面读进来,不会引用页面
+    void prefetch(int... pgnos);
     // 关闭页面缓存,释放相关资源
     void close();
+    // 模拟崩溃: 停掉后台线程后直接关闭文件,缓存里的脏页都不写回,只给测试使用
+    void crash();
     // 释放页面,将页面从缓存中移除
     void release(Page page);
 
@@ -29,9 +48,21 @@ public interface PageCache {
     int getPageNumber();
     // 将页面内容刷新到磁盘,和truncateByBgno的区别是只刷新单个页面
     void flushPage(Page pg);
+    // 将所有未被引用的脏页写回并刷盘
+    void sync();
+    // 将正在被引用的脏页写回,不刷盘,调用者要保证期间没有人修改这些页面
+    void writePinned();
+    // 脏页表: 缓存中所有带有recLsn的脏页,pgno -> recLsn,检查点使用
+    LongLongMap dirtyPageTable();
+    // 设置写回页面前调用的日志刷盘函数,参数是页面的LSN,用来保证日志先于页面落盘(WAL)
+    void setLogFlusher(LongConsumer flusher);
 
     // 工厂方法,创建新的页面缓存
     public static PageCacheImpl create(String path, long memory) {
+        return create(path, memory, MODE_HEAP);
+    }
+
+    public static PageCacheImpl create(String path, long memory, int mode) {
         // 创建数据库文件,一个database对应一个文件
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         try {
@@ -54,10 +85,14 @@ public interface PageCache {
            Panic.panic(e);
         }
         // 创建页面缓存对象,传入文件相关变量和内存大小
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(raf, fc, (int)(memory/PAGE_SIZE), mode);
     }
 
     public static PageCacheImpl open(String path, long memory) {
+        return open(path, memory, MODE_HEAP);
+    }
+
+    public static PageCacheImpl open(String path, long memory, int mode) {
         File f = new File(path+PageCacheImpl.DB_SUFFIX);
         if(!f.exists()) {
             Panic.panic(Error.FileNotExistsException);
@@ -74,6 +109,19 @@ public interface PageCache {
         } catch (FileNotFoundException e) {
            Panic.panic(e);
         }
-        return new PageCacheImpl(raf, fc, (int)memory/PAGE_SIZE);
+        return newPageCache(raf, fc, (int)(memory/PAGE_SIZE), mode);
+    }
+
+    private static PageCacheImpl newPageCache(RandomAccessFile raf, FileChannel fc, int maxResource, int mode) {
+        PageCacheImpl pc;
+        if((mode & ~WRITE_BACK) == MODE_MMAP) {
+            pc = new MappedPageCacheImpl(raf, fc, maxResource);
+        } else {
+            pc = new PageCacheImpl(raf, fc, maxResource, mode & ~WRITE_BACK);
+        }
+        if((mode & WRITE_BACK) != 0) {
+            pc.startWriter();
+        }
+        return pc;
     }
 }
@@ -4,11 +4,21 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.LongConsumer;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.LongLongMap;
 import top.guoziyang.mydb.backend.dm.page.Page;
 import top.guoziyang.mydb.backend.dm.page.PageImpl;
 import top.guoziyang.mydb.backend.utils.Panic;
@@ -17,12 +27,29 @@ import top.guoziyang.mydb.common.Error;
 // 页面缓存实现类,实现了页面缓存接口,继承自抽象缓存类
 // 这里相当于磁盘就是一个文件系统,页面就是文件系统中的块
 // 页面缓存负责将文件系统中的页面读入内存,并进行缓存管理
+// 页面缓存工作在常驻模式下: 页面释放后仍然留在内存里,直到-mem给出的页数用满才按CLOCK(二次机会)驱逐,驱逐时只写回脏页
+// MODE_DIRECT下页面数据放在堆外的页帧池里,文件直接读进帧,驱逐后帧留给下一个页面复用
+// 写回模式(WRITE_BACK)下写页面不再逐页force,由后台写回线程在脏页比例超过DIRTY_RATIO或每隔SYNC_INTERVAL
+// 把无人引用的脏页批量写回,再统一force一次.任何页面写回前都先让日志落盘到页面的LSN,崩溃后没落盘的页面由恢复重做
+// 预读: prefetch/getPageAsync在IO线程池上加载页面; getPage发现连续访问时,也会自动预读后面的若干页
 public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
 
     // 页面大小为8KB,这是数据库系统中常用的页面大小,MEM_MIN_LIM表示内存下限,至少要10页
     private static final int MEM_MIN_LIM = 10;
     // 数据库文件后缀名
     public static final String DB_SUFFIX = ".db";
+    // 写回线程检查脏页的间隔,毫秒
+    private static final long WRITER_TICK = 100;
+    // 无人引用的脏页超过缓存容量的这个百分比就立刻写回
+    private static final int DIRTY_RATIO = 10;
+    // 最长多久一定写回一次,毫秒
+    private static final long SYNC_INTERVAL = 1000;
+    // 预读使用的IO线程数
+    private static final int IO_THREADS = 4;
+    // 连续访问多少页之后开始预读
+    private static final int SEQ_TRIGGER = 3;
+    // 一次最多预读多少页,实际还不超过缓存容量的四分之一
+    private static final int READ_AHEAD = 32;
 
     // 数据库文件相关变量
     // RandomAccessFile用于文件读写,RandomAccessFile支持随机访问文件，可以在文件的任意位置读写数据
@@ -30,14 +57,36 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     // FileChannel用于文件读写,FileChannel提供了更高效的文件读写操作，支持异步IO和内存映射等高级功能
     // 这里的fc用于读写数据库文件,与file配合使用
     private FileChannel fc;
-    // 保护文件读写的锁
-    private Lock fileLock;
     // 当前页面数量的原子变量
     private AtomicInteger pageNumbers;
+    // 堆外页帧池,堆模式下为null
+    private FramePool frames;
+    // 缓存容量,用来计算脏页比例
+    private int maxResource;
+    // 是否工作在写回模式
+    private boolean writeBack;
+    // 后台写回线程,只有写回模式才有
+    private Thread writer;
+    private volatile boolean closed;
+    // 执行预读的IO线程池
+    private ExecutorService ioPool;
+    // 顺序访问检测: 上一次访问的页号,连续访问的长度,已经预读到的页号
+    private Lock seqLock;
+    private int lastPgno;
+    private int seqRun;
+    private int readAheadUntil;
+    // 预读任务持有读锁,truncateByBgno持有写锁,截断之后不会再有预读把截掉的页面读进来
+    private ReadWriteLock truncateLock;
+    // 写回页面前让日志先落盘,由DataManager设置
+    private volatile LongConsumer logFlusher;
 
     // 构造函数,传入已经打开的数据库文件的RandomAccessFile和FileChannel
     PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource) {
-        super(maxResource);
+        this(file, fileChannel, maxResource, MODE_HEAP);
+    }
+
+    PageCacheImpl(RandomAccessFile file, FileChannel fileChannel, int maxResource, int mode) {
+        super(maxResource, true, DEFAULT_SEGMENTS);
         if(maxResource < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
@@ -49,8 +98,18 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.file = file;
         this.fc = fileChannel;
-        this.fileLock = new ReentrantLock();
-        this.pageNumbers = new AtomicInteger((int)length / PAGE_SIZE);
+        this.pageNumbers = new AtomicInteger((int)(length / PAGE_SIZE));
+        this.maxResource = maxResource;
+        this.seqLock = new ReentrantLock();
+        this.truncateLock = new ReentrantReadWriteLock();
+        this.ioPool = Executors.newFixedThreadPool(IO_THREADS, r -> {
+            Thread t = new Thread(r, "page-io");
+            t.setDaemon(true);
+            return t;
+        });
+        if(mode == MODE_DIRECT) {
+            this.frames = new FramePool(maxResource);
+        }
     }
 
     // 创建新页面,返回页面编号
@@ -61,15 +120,91 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         int pgno = pageNumbers.incrementAndGet();
         // 创建新的页面对象
         Page pg = new PageImpl(pgno, initData, null);
-        // 一个新建的页面一定要立刻写回到磁盘中
-        flush(pg);
+        // 一个新建的页面一定要立刻写到文件里,文件长度决定了下次打开时的页面数量
+        // 写回模式下不单独force,和其他脏页一起刷盘
+        write(pgno, bufferOf(pg));
+        if(!writeBack) {
+            force(pgno);
+        }
         return pgno;
     }
     // 获取页面,根据页面编号返回页面对象
     public Page getPage(int pgno) throws Exception {
+        readAhead(pgno);
         return get((long)pgno);
     }
 
+    // 在IO线程上获取页面,得到的页面和getPage一样需要调用者release
+    public CompletableFuture<Page> getPageAsync(int pgno) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return get((long)pgno);
+            } catch(Exception e) {
+                throw new CompletionException(e);
+            }
+        }, ioPool);
+    }
+
+    // 在IO线程上把页面读进缓存后立即释放,页面常驻在缓存里,之后的getPage直接命中
+    public void prefetch(int... pgnos) {
+        for(int pgno : pgnos) {
+            if(pgno < 1 || pgno > pageNumbers.get()) {
+                continue;
+            }
+            ioPool.execute(() -> {
+                truncateLock.readLock().lock();
+                try {
+                    // 排队期间文件可能被截断了
+                    if(pgno > pageNumbers.get()) {
+                        return;
+                    }
+                    get((long)pgno);
+                    release((long)pgno);
+                } catch(Exception e) {
+                    // 缓存被占满时放弃这次预读
+                } finally {
+                    truncateLock.readLock().unlock();
+                }
+            });
+        }
+    }
+
+    /**
+     * 检测顺序访问,连续访问了SEQ_TRIGGER页之后预读后面的页面
+     * 检测状态只是一个提示,拿不到锁就跳过这次检测,不让getPage互相等待
+     */
+    private void readAhead(int pgno) {
+        if(!seqLock.tryLock()) {
+            return;
+        }
+        int from, to;
+        try {
+            seqRun = pgno == lastPgno + 1 ? seqRun + 1 : 0;
+            lastPgno = pgno;
+            if(seqRun < SEQ_TRIGGER) {
+                return;
+            }
+            int window = Math.min(READ_AHEAD, maxResource / 4);
+            // 已经预读的部分还剩一半时再预读下一批
+            if(readAheadUntil - pgno > window / 2) {
+                return;
+            }
+            from = Math.max(pgno + 1, readAheadUntil + 1);
+            to = Math.min(pgno + window, pageNumbers.get());
+            if(from > to) {
+                return;
+            }
+            readAheadUntil = to;
+        } finally {
+            seqLock.unlock();
+        }
+        int[] pgnos = new int[to - from + 1];
+        for(int i = 0; i < pgnos.length; i ++) {
+            pgnos[i] = from + i;
+        }
+        prefetch(pgnos);
+    }
+
     /**
      * 根据pageNumber从数据库文件中读取页数据，并包裹成Page,供缓存使用
      * @param key 页面编号
@@ -78,24 +213,74 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     protected Page getForCache(long key) throws Exception {
-        // 计算页面在文件中的偏移位置
         int pgno = (int)key;
+        // 从文件中读取页面数据,堆外模式直接读进一个空闲帧
+        ByteBuffer buf = frames == null ? ByteBuffer.allocate(PAGE_SIZE) : frames.acquire();
+        read(pgno, buf);
+        if(frames == null) {
+            // 包裹成Page对象并返回
+            return new PageImpl(pgno, buf.array(), this);
+        }
+        // 帧是复用的,文件末尾读不满的部分要清零,不能留下上一个页面的数据
+        while(buf.hasRemaining()) {
+            buf.put((byte)0);
+        }
+        buf.clear();
+        return new PageImpl(pgno, buf, this);
+    }
+
+    /**
+     * 把第pgno页读进buf,读到文件末尾就停下,buf的position停在读到的末尾
+     * 使用带偏移的read,不改变通道的position,多个线程可以同时读不同的页面,不需要加锁
+     */
+    protected void read(int pgno, ByteBuffer buf) {
         // 页面在文件中的偏移位置
-        long offset = PageCacheImpl.pageOffset(pgno);
-        // 从文件中读取页面数据
-        ByteBuffer buf = ByteBuffer.allocate(PAGE_SIZE);
-        fileLock.lock();
+        long offset = pageOffset(pgno);
+        try {
+            // 一次read可能读不满,按已读的字节数推进偏移继续读
+            while(buf.hasRemaining()) {
+                int n = fc.read(buf, offset);
+                if(n < 0) {
+                    break;
+                }
+                offset += n;
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 把buf中的一整页写到第pgno页,不刷盘
+     * 同样使用带偏移的write,不同页面的写回互不阻塞
+     */
+    protected void write(int pgno, ByteBuffer buf) {
+        long offset = pageOffset(pgno);
+        try {
+            while(buf.hasRemaining()) {
+                offset += fc.write(buf, offset);
+            }
+        } catch(IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 保证第pgno页之前的写入已经落盘
+     */
+    protected void force(int pgno) {
+        forceAll();
+    }
+
+    /**
+     * 保证之前所有的写入都已经落盘
+     */
+    protected void forceAll() {
         try {
-            // 将文件通道的位置移动到页面的偏移位置
-            fc.position(offset);
-            // 读取页面数据到缓冲区
-            fc.read(buf);
+            fc.force(false);
         } catch(IOException e) {
             Panic.panic(e);
         }
-        fileLock.unlock();
-        // 包裹成Page对象并返回
-        return new PageImpl(pgno, buf.array(), this);
     }
 
     /**
@@ -106,9 +291,17 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     protected void releaseForCache(Page pg) {
         // 只有脏页面才需要写回
         if(pg.isDirty()) {
-            flush(pg);
-            // 页面写回后,将脏标记清除
+            // 先清除脏标记再写回
             pg.setDirty(false);
+            flushLog(pg);
+            write(pg.getPageNumber(), bufferOf(pg));
+            if(!writeBack) {
+                force(pg.getPageNumber());
+            }
+        }
+        if(frames != null) {
+            // 页面已经离开缓存,帧还回池中
+            frames.release(pg.getBuffer());
         }
     }
 
@@ -117,44 +310,157 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         release((long)page.getPageNumber());
     }
 
-    // 将页面内容刷新到磁盘
+    // 将页面内容刷新到磁盘,不论是否是写回模式都立刻force
     public void flushPage(Page pg) {
-        flush(pg);
+        flushLog(pg);
+        write(pg.getPageNumber(), bufferOf(pg));
+        force(pg.getPageNumber());
     }
+
+    // 页面缓冲区是共享的,写文件时在副本上移动position
+    private static ByteBuffer bufferOf(Page pg) {
+        ByteBuffer buf = pg.getBuffer().duplicate();
+        buf.clear();
+        return buf;
+    }
+
+    // 将所有无人引用的脏页写回,最后统一force一次
+    public void sync() {
+        forEachUnpinned(pg -> {
+            if(pg.isDirty()) {
+                pg.setDirty(false);
+                flushLog(pg);
+                write(pg.getPageNumber(), bufferOf(pg));
+            }
+        });
+        forceAll();
+    }
+
     /**
-     * 将页面写回到数据库文件
-     * @param pg 页面对象
+     * 将被引用的脏页写回,不刷盘,之后的sync会一起force
+     * 一直被引用的页面(比如B+树boot所在的页)不会被sync和驱逐写回,只能靠这里,否则它的recLsn永远停在第一次修改,检查点回收不了日志
+     * 被引用的页面随时可能被修改,调用者要保证期间没有人修改页面,DataManager在检查点的写锁下调用
      */
-    private void flush(Page pg) {
-        int pgno = pg.getPageNumber();
-        long offset = pageOffset(pgno);
+    public void writePinned() {
+        forEachPinned(pg -> {
+            if(pg.isDirty()) {
+                pg.setDirty(false);
+                flushLog(pg);
+                write(pg.getPageNumber(), bufferOf(pg));
+            }
+        });
+    }
 
-        fileLock.lock();
-        try {
-            ByteBuffer buf = ByteBuffer.wrap(pg.getData());
-            fc.position(offset);
-            fc.write(buf);
-            fc.force(false);
-        } catch(IOException e) {
-            Panic.panic(e);
-        } finally {
-            fileLock.unlock();
+    public LongLongMap dirtyPageTable() {
+        LongLongMap dpt = new LongLongMap();
+        forEachCached(pg -> {
+            // recLsn只在页面写回时清零,不为0就说明有还没写回的修改,不必再看脏标记
+            long recLsn = pg.getRecLsn();
+            if(recLsn > 0) {
+                dpt.put(pg.getPageNumber(), recLsn);
+            }
+        });
+        return dpt;
+    }
+
+    public void setLogFlusher(LongConsumer flusher) {
+        this.logFlusher = flusher;
+    }
+
+    // WAL: 修改过这个页面的日志必须先于页面落盘
+    private void flushLog(Page pg) {
+        LongConsumer flusher = logFlusher;
+        if(flusher != null && pg.getLsn() > 0) {
+            flusher.accept(pg.getLsn());
+        }
+    }
+
+    // 进入写回模式并启动后台写回线程
+    void startWriter() {
+        writeBack = true;
+        writer = new Thread(this::writerLoop, "page-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    private void writerLoop() {
+        long lastSync = System.currentTimeMillis();
+        while(!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(WRITER_TICK));
+            if(closed) {
+                return;
+            }
+            int[] dirty = {0};
+            forEachUnpinned(pg -> {
+                if(pg.isDirty()) {
+                    dirty[0] ++;
+                }
+            });
+            long now = System.currentTimeMillis();
+            if(dirty[0] > 0 && (dirty[0] * 100L >= (long)maxResource * DIRTY_RATIO || now - lastSync >= SYNC_INTERVAL)) {
+                sync();
+                lastSync = now;
+            }
         }
     }
 
     public void truncateByBgno(int maxPgno) {
-        long size = pageOffset(maxPgno + 1);
+        truncateLock.writeLock().lock();
         try {
-            file.setLength(size);
-        } catch (IOException e) {
-            Panic.panic(e);
+            long size = pageOffset(maxPgno + 1);
+            try {
+                file.setLength(size);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            pageNumbers.set(maxPgno);
+            // 恢复时的顺序预读可能已经把截掉的页面读进了缓存,直接丢掉,不能写回,
+            // 否则之后newPage重新用到这些页号时会拿到旧的页面,或者把它写到新的文件末尾之外
+            discardIf(pgno -> pgno > maxPgno, pg -> {
+                if(frames != null) {
+                    frames.release(pg.getBuffer());
+                }
+            });
+        } finally {
+            truncateLock.writeLock().unlock();
         }
-        pageNumbers.set(maxPgno);
     }
 
     @Override
     public void close() {
+        stopThreads();
         super.close();
+        // 写回模式下驱逐和关闭时写回的页面都还没有force
+        forceAll();
+        closeFile();
+    }
+
+    public void crash() {
+        stopThreads();
+        closeFile();
+    }
+
+    private void stopThreads() {
+        closed = true;
+        // 等正在进行的预读结束,它们会引用页面
+        ioPool.shutdown();
+        try {
+            ioPool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Panic.panic(e);
+        }
+        if(writer != null) {
+            // 写回线程可能正在force,中断会让FileChannel被关掉,所以用unpark叫醒,由它自己看到closed退出
+            LockSupport.unpark(writer);
+            try {
+                writer.join();
+            } catch(InterruptedException e) {
+                Panic.panic(e);
+            }
+        }
+    }
+
+    private void closeFile() {
         try {
             fc.close();
             file.close();
@@ -168,9 +474,9 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumbers.intValue();
     }
 
-    private static long pageOffset(int pgno) {
+    static long pageOffset(int pgno) {
         // 页面编号从1开始,所以要减1
-        return (pgno-1) * PAGE_SIZE;
+        return (long)(pgno-1) * PAGE_SIZE;
     }
     
 }
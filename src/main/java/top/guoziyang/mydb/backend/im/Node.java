@@ -33,6 +33,8 @@ public class Node {
     DataItem dataItem;
     SubArray raw;
     long uid;
+    // 最近一次成功insert时shiftRawKth的kth,叶子节点是插入位置,内部节点是插入位置+1,持有dataItem的写锁时才有意义
+    private int shifted;
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
         if(isLeaf) {
@@ -95,6 +97,15 @@ public class Node {
         }
     }
 
+    // shiftRawKth(raw, kth)移动的区间在节点中的起点和长度,移动的距离是8*2
+    static int shiftFrom(int kth) {
+        return NODE_HEADER_SIZE+kth*(8*2);
+    }
+
+    static int shiftLength(int kth) {
+        return NODE_SIZE-NODE_HEADER_SIZE-(kth+1)*(8*2);
+    }
+
     /**
      * 初始化一个根节点的数据
      * @param left  左边节点
@@ -270,7 +281,9 @@ public class Node {
             }
         } finally {
             if(err == null && success) {
-                dataItem.after(TransactionManagerImpl.SUPER_XID);
+                // 插入key时节点后半部分整体后移,日志只记录这次移动和改动的几个字段,不记录整个节点
+                int from = shiftFrom(shifted);
+                dataItem.afterMove(TransactionManagerImpl.SUPER_XID, from, from+(8*2), shiftLength(shifted));
             } else {
                 dataItem.unBefore();
             }
@@ -291,6 +304,7 @@ public class Node {
         if(kth == noKeys && getRawSibling(raw) != 0) return false;
 
         if(getRawIfLeaf(raw)) {
+            shifted = kth;
             shiftRawKth(raw, kth);
             setRawKthKey(raw, key, kth);
             setRawKthSon(raw, uid, kth);
@@ -298,6 +312,7 @@ public class Node {
         } else {
             long kk = getRawKthKey(raw, kth);
             setRawKthKey(raw, key, kth);
+            shifted = kth+1;
             shiftRawKth(raw, kth+1);
             setRawKthKey(raw, kk, kth+1);
             setRawKthSon(raw, uid, kth+1);
@@ -399,8 +399,8 @@ public class Parser {
     private static Begin parseBegin(Tokenizer tokenizer) throws Exception {
         String isolation = tokenizer.peek();
         Begin begin = new Begin();
-        if("".equals(isolation)) {
-            return begin;
+        if("".equals(isolation) || "read".equals(isolation) || "async".equals(isolation)) {
+            return parseBeginOptions(tokenizer, begin);
         }
         if(!"isolation".equals(isolation)) {
             throw Error.InvalidCommandException;
@@ -419,10 +419,7 @@ public class Parser {
             String tmp2 = tokenizer.peek();
             if("committed".equals(tmp2)) {
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseBeginOptions(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -432,10 +429,7 @@ public class Parser {
             if("read".equals(tmp2)) {
                 begin.isRepeatableRead = true;
                 tokenizer.pop();
-                if(!"".equals(tokenizer.peek())) {
-                    throw Error.InvalidCommandException;
-                }
-                return begin;
+                return parseBeginOptions(tokenizer, begin);
             } else {
                 throw Error.InvalidCommandException;
             }
@@ -444,6 +438,26 @@ public class Parser {
         }
     }
 
+    // begin语句末尾可选的read only和async commit,顺序不限
+    private static Begin parseBeginOptions(Tokenizer tokenizer, Begin begin) throws Exception {
+        while(true) {
+            String option = tokenizer.peek();
+            if("".equals(option)) {
+                return begin;
+            }
+            tokenizer.pop();
+            String tmp = tokenizer.peek();
+            if("read".equals(option) && "only".equals(tmp) && !begin.isReadOnly) {
+                begin.isReadOnly = true;
+            } else if("async".equals(option) && "commit".equals(tmp) && !begin.isAsyncCommit) {
+                begin.isAsyncCommit = true;
+            } else {
+                throw Error.InvalidCommandException;
+            }
+            tokenizer.pop();
+        }
+    }
+
     private static boolean isName(String name) {
         return !(name.length() == 1 && !Tokenizer.isAlphaBeta(name.getBytes()[0]));
     }
@@ -65,7 +65,10 @@ public class Executor {
         Exception e = null;
         if(xid == 0) {
             tmpTransaction = true;
-            BeginRes r = tbm.begin(new Begin());
+            // 单独执行的select和show用只读事务,不分配xid,也没有落盘的写
+            Begin begin = new Begin();
+            begin.isReadOnly = Select.class.isInstance(stat) || Show.class.isInstance(stat);
+            BeginRes r = tbm.begin(begin);
             xid = r.xid;
         }
         try {
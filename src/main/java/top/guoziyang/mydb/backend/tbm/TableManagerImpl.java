@@ -59,7 +59,7 @@ public class TableManagerImpl implements TableManager {
     public BeginRes begin(Begin begin) {
         BeginRes res = new BeginRes();
         int level = begin.isRepeatableRead?1:0;
-        res.xid = vm.begin(level);
+        res.xid = begin.isReadOnly ? vm.beginReadOnly(level) : vm.begin(level, begin.isAsyncCommit);
         res.result = "begin".getBytes();
         return res;
     }
@@ -95,6 +95,7 @@ public class TableManagerImpl implements TableManager {
     }
     @Override
     public byte[] create(long xid, Create create) throws Exception {
+        checkWritable(xid);
         lock.lock();
         try {
             if(tableCache.containsKey(create.tableName)) {
@@ -114,6 +115,7 @@ public class TableManagerImpl implements TableManager {
     }
     @Override
     public byte[] insert(long xid, Insert insert) throws Exception {
+        checkWritable(xid);
         lock.lock();
         Table table = tableCache.get(insert.tableName);
         lock.unlock();
@@ -135,6 +137,7 @@ public class TableManagerImpl implements TableManager {
     }
     @Override
     public byte[] update(long xid, Update update) throws Exception {
+        checkWritable(xid);
         lock.lock();
         Table table = tableCache.get(update.tableName);
         lock.unlock();
@@ -146,6 +149,7 @@ public class TableManagerImpl implements TableManager {
     }
     @Override
     public byte[] delete(long xid, Delete delete) throws Exception {
+        checkWritable(xid);
         lock.lock();
         Table table = tableCache.get(delete.tableName);
         lock.unlock();
@@ -155,4 +159,11 @@ public class TableManagerImpl implements TableManager {
         int count = table.delete(xid, delete);
         return ("delete " + count).getBytes();
     }
+
+    // 只读事务的xid是负数,写操作在碰到DM之前就拒绝,建表时的B+树和表结构都不会写到SUPER_XID名下
+    private void checkWritable(long xid) throws Exception {
+        if(xid < 0) {
+            throw Error.ReadOnlyTransactionException;
+        }
+    }
 }
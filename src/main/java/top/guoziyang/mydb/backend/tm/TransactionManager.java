@@ -21,6 +21,10 @@ public interface TransactionManager {
     boolean isActive(long xid);
     boolean isCommitted(long xid);
     boolean isAborted(long xid);
+    // 把修改过的状态落盘
+    void sync();
+    // 下一个将要分配的xid,不分配
+    long nextXid();
     // 关闭事务管理器
     void close();
 
@@ -4,6 +4,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -14,12 +16,14 @@ import top.guoziyang.mydb.common.Error;
 // 我们称XID是一个全局的文件,xid是一个事务持有的标识符
 // XID文件格式:
 // XID_FILE_HEADER:
-// | 8 bytes |  --> xidCounter 事务的总数量,也就是最大事务的编号.
+// | 8 bytes |  --> xidCounter 已经预分配出去的最大事务编号,每次预分配XID_BATCH个
 // XID_FILE_BODY:
 // | 1 byte  |  --> xid状态(0:active, 1:committed, 2:aborted)
 // | 1 byte  |  --> xid状态
 // | 1 byte  |  --> xid状态
 // ...
+// 所有xid的状态同时在内存里保存一份,每个xid占2位,查询状态只读内存,修改状态时文件和内存一起改
+// 事务的结局以日志里的commit/abort日志为准,修改状态时只写文件不落盘,检查点回收日志之前调用sync统一落盘
 public class TransactionManagerImpl implements TransactionManager {
 
     // XID文件头长度: 8字节，存储xidCounter.记录当前管理的事务的个数
@@ -38,13 +42,22 @@ public class TransactionManagerImpl implements TransactionManager {
     // XID文件后缀名
     static final String XID_SUFFIX = ".xid";
 
+    // 内存状态表中每个long存放的xid个数
+    private static final int XIDS_PER_WORD = Long.SIZE / 2;
+    // 每次预分配的xid个数
+    private static final int XID_BATCH = 1024;
+    // 打开时读入XID文件的块大小
+    private static final int LOAD_CHUNK = 1 << 16;
+
     // XID文件相关变量
     // RandomAccessFile用于文件读写
     private RandomAccessFile file;
     // FileChannel用于文件读写
     private FileChannel fc;
-    // 当前XID计数器
+    // 当前XID计数器,也就是文件头中的值,已经预分配到的最大xid
     private long xidCounter;
+    // 下一个要分配的xid,不大于xidCounter时直接从预分配的区间里取
+    private long nextXid;
     // 保护XID计数器的锁
     // 这种lock的工作原理类似于synchronized，但更灵活
     // synchronized在同一时刻只能有一个线程访问临界区，而lock可以实现更复杂的同步
@@ -53,17 +66,90 @@ public class TransactionManagerImpl implements TransactionManager {
     // 确保在多线程环境下，多个线程不会同时修改xidCounter，避免数据竞争和不一致
     private Lock counterLock;
 
+    // 内存中的状态表,下标为xid/32,每个xid 2位;扩容时整个替换,所以是volatile
+    private volatile AtomicLongArray status;
+    // 修改状态表的线程互斥,读不加锁
+    private Lock statusLock;
+
+    // 组提交: 已完成的状态写入个数,以及已经落盘的个数
+    private final AtomicLong writeSeq = new AtomicLong();
+    private volatile long durableSeq;
+    // 同一时刻只有一个线程做force
+    private final Lock forceLock = new ReentrantLock();
+
     // 构造函数,传入已经打开的XID文件的RandomAccessFile和FileChannel
     TransactionManagerImpl(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        statusLock = new ReentrantLock();
         checkXIDCounter();
+        loadStatus();
+    }
+
+    // 把XID文件中所有事务的状态读进内存
+    private void loadStatus() {
+        status = new AtomicLongArray((int)(xidCounter / XIDS_PER_WORD) + 1);
+        ByteBuffer buf = ByteBuffer.allocate(LOAD_CHUNK);
+        long xid = 1;
+        while(xid <= xidCounter) {
+            buf.clear();
+            int want = (int)Math.min(LOAD_CHUNK, xidCounter - xid + 1);
+            buf.limit(want);
+            long pos = getXidPosition(xid);
+            try {
+                while(buf.hasRemaining()) {
+                    int n = fc.read(buf, pos);
+                    if(n < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                    pos += n;
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            for(int i = 0; i < want; i ++) {
+                setStatus(xid + i, buf.get(i));
+            }
+            xid += want;
+        }
+    }
+
+    private void setStatus(long xid, byte s) {
+        statusLock.lock();
+        try {
+            int idx = (int)(xid / XIDS_PER_WORD);
+            AtomicLongArray table = status;
+            if(idx >= table.length()) {
+                AtomicLongArray bigger = new AtomicLongArray(Math.max(idx + 1, table.length() * 2));
+                for(int i = 0; i < table.length(); i ++) {
+                    bigger.set(i, table.get(i));
+                }
+                status = table = bigger;
+            }
+            int shift = (int)(xid % XIDS_PER_WORD) * 2;
+            long word = table.get(idx);
+            table.set(idx, (word & ~(3L << shift)) | ((long)s << shift));
+        } finally {
+            statusLock.unlock();
+        }
+    }
+
+    // 超出状态表的xid还没有被修改过,和文件中一样视为active
+    private byte getStatus(long xid) {
+        AtomicLongArray table = status;
+        int idx = (int)(xid / XIDS_PER_WORD);
+        if(idx >= table.length()) {
+            return FIELD_TRAN_ACTIVE;
+        }
+        int shift = (int)(xid % XIDS_PER_WORD) * 2;
+        return (byte)((table.get(idx) >>> shift) & 3);
     }
 
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 预分配时先扩文件再写文件头,崩溃后文件可能比文件头记录的长,多出来的部分还没分配出去,直接截掉
      */
     private void checkXIDCounter() {
         long fileLen = 0;
@@ -89,12 +175,21 @@ public class TransactionManagerImpl implements TransactionManager {
         }
         // 解析xidCounter
         this.xidCounter = Parser.parseLong(buf.array());
+        this.nextXid = xidCounter + 1;
         // 计算理论文件长度
         long end = getXidPosition(this.xidCounter + 1);
         // 对比实际文件长度和理论文件长度
-        if(end != fileLen) {
+        if(end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if(end < fileLen) {
+            try {
+                fc.truncate(end);
+                fc.force(false);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
     }
 
     // 根据事务xid取得其在XID文件中对应的位置
@@ -103,75 +198,108 @@ public class TransactionManagerImpl implements TransactionManager {
         return LEN_XID_HEADER_LENGTH + (xid-1) * XID_FIELD_SIZE;
     }
 
-    // 更新xid事务的状态为status
-    private void updateXID(long xid, byte status) {
-        // 计算xid在文件中的位置
-        long offset = getXidPosition(xid);
-        // 准备写入的字节数组
-        byte[] tmp = new byte[XID_FIELD_SIZE];
-        // 设置状态
-        tmp[0] = status;
-        // 将状态写入文件
-        ByteBuffer buf = ByteBuffer.wrap(tmp);
+    // 在pos处写入buf的全部内容,不移动position,多个线程可以同时写不同位置
+    private void writeAt(ByteBuffer buf, long pos) {
         try {
-            // 定位到xid位置
-            fc.position(offset);
-            // 写入状态
-            fc.write(buf);
+            while(buf.hasRemaining()) {
+                pos += fc.write(buf, pos);
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    // 更新xid事务的状态为status,不落盘,由sync统一force
+    private void updateXID(long xid, byte status) {
+        // 将状态写入xid在文件中的位置
+        writeAt(ByteBuffer.wrap(new byte[] { status }), getXidPosition(xid));
+        // 写完之后才领序号,所以序号不大于某个值的写一定都已经完成
+        writeSeq.incrementAndGet();
+        setStatus(xid, status);
+    }
+
+    // 保证之前所有的状态修改都已经落盘
+    public void sync() {
+        groupForce(writeSeq.get());
+    }
+
+    /**
+     * 组提交: 保证序号不大于seq的状态写入都已经落盘
+     * 拿到forceLock的线程把当时已经完成的所有写一起force,等锁的线程醒来发现自己已经被带上,直接返回
+     */
+    private void groupForce(long seq) {
+        if(durableSeq >= seq) {
+            return;
+        }
+        forceLock.lock();
         try {
+            if(durableSeq >= seq) {
+                return;
+            }
+            long target = writeSeq.get();
             fc.force(false);
+            durableSeq = target;
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            forceLock.unlock();
         }
     }
 
-    // 将XID加一，并更新XID Header
-    private void incrXIDCounter() {
-        xidCounter ++;
-        // 更新XID文件头中的xidCounter
-        ByteBuffer buf = ByteBuffer.wrap(Parser.long2Byte(xidCounter));
+    // 文件头记录的是已经预分配到的最大xid,写入并落盘
+    private void writeXIDCounter(long counter) {
+        writeAt(ByteBuffer.wrap(Parser.long2Byte(counter)), 0);
         try {
-            // 定位到文件头位置
-            fc.position(0);
-            // 写入新的xidCounter
-            fc.write(buf);
+            // 这里传入false表示不需要同时将文件元数据也写入磁盘
+            fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+    }
+
+    /**
+     * 预分配下一段xid
+     * 先把文件扩到能放下这一段的状态,再把新的上界写进文件头,每XID_BATCH个事务只落盘两次
+     * 新扩出来的状态都是0,也就是active,所以begin不需要再写状态
+     * 崩溃后这一段里没用到的xid永远是active,它们没有写过任何数据,没有影响
+     */
+    private void reserveXIDs() {
+        long counter = xidCounter + XID_BATCH;
+        // 写最后一个状态字节把文件撑大
+        writeAt(ByteBuffer.wrap(new byte[] { FIELD_TRAN_ACTIVE }), getXidPosition(counter));
         try {
-            // 强制将更改写入磁盘
-            // 这里传入false表示不需要同时将文件元数据也写入磁盘
-            // 因为我们只修改了文件内容，不涉及文件大小等元数据的变化
             fc.force(false);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        writeXIDCounter(counter);
+        xidCounter = counter;
     }
 
     // 开始一个事务，并返回XID
-    // begin主要是要进行两件事:
-    // 1. 分配一个新的xid
-    // 2. 将该xid的状态设置为active
+    // xid从预分配的区间里取,区间用完才写一次文件头
     public long begin() {
         counterLock.lock();
         try {
-            // 分配一个新的xid,这是自增并且全局的变量
-            long xid = xidCounter + 1;
-            // 将该xid的状态设置为active
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            // xidCounter加一
-            incrXIDCounter();
-            // 返回该xid
-            return xid;
+            if(nextXid > xidCounter) {
+                reserveXIDs();
+            }
+            return nextXid ++;
         } finally {
             // 释放锁
             counterLock.unlock();
         }
     }
 
+    public long nextXid() {
+        counterLock.lock();
+        try {
+            return nextXid;
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
     // 提交XID事务
     public void commit(long xid) {
         updateXID(xid, FIELD_TRAN_COMMITTED);
@@ -182,17 +310,9 @@ public class TransactionManagerImpl implements TransactionManager {
         updateXID(xid, FIELD_TRAN_ABORTED);
     }
 
-    // 检测XID事务是否处于某个status状态
+    // 检测XID事务是否处于某个status状态,只读内存中的状态表
     private boolean checkXID(long xid, byte status) {
-        long offset = getXidPosition(xid);
-        ByteBuffer buf = ByteBuffer.wrap(new byte[XID_FIELD_SIZE]);
-        try {
-            fc.position(offset);
-            fc.read(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return buf.array()[0] == status;
+        return getStatus(xid) == status;
     }
 
     public boolean isActive(long xid) {
@@ -210,12 +330,22 @@ public class TransactionManagerImpl implements TransactionManager {
         return checkXID(xid, FIELD_TRAN_ABORTED);
     }
 
+    // 正常关闭时把没用到的预分配xid还回去,下次打开从nextXid接着分配
     public void close() {
+        counterLock.lock();
         try {
+            long used = nextXid - 1;
+            if(used < xidCounter) {
+                writeXIDCounter(used);
+                fc.truncate(getXidPosition(used + 1));
+                fc.force(false);
+            }
             fc.close();
             file.close();
         } catch (IOException e) {
             Panic.panic(e);
+        } finally {
+            counterLock.unlock();
         }
     }
 
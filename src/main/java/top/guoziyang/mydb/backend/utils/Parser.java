@@ -35,6 +35,46 @@ public class Parser {
         return ByteBuffer.allocate(Long.SIZE / Byte.SIZE).putLong(value).array();
     }
 
+    // 下面几个方法直接在已有数组的off处读写,和上面的方法一样是大端序,不分配新数组
+    public static void putShort(byte[] buf, int off, short value) {
+        buf[off] = (byte)(value >>> 8);
+        buf[off+1] = (byte)value;
+    }
+
+    public static void putInt(byte[] buf, int off, int value) {
+        for(int i = 3; i >= 0; i --) {
+            buf[off+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    public static void putLong(byte[] buf, int off, long value) {
+        for(int i = 7; i >= 0; i --) {
+            buf[off+i] = (byte)value;
+            value >>>= 8;
+        }
+    }
+
+    public static short parseShort(byte[] buf, int off) {
+        return (short)(((buf[off] & 0xFF) << 8) | (buf[off+1] & 0xFF));
+    }
+
+    public static int parseInt(byte[] buf, int off) {
+        int v = 0;
+        for(int i = 0; i < 4; i ++) {
+            v = (v << 8) | (buf[off+i] & 0xFF);
+        }
+        return v;
+    }
+
+    public static long parseLong(byte[] buf, int off) {
+        long v = 0;
+        for(int i = 0; i < 8; i ++) {
+            v = (v << 8) | (buf[off+i] & 0xFF);
+        }
+        return v;
+    }
+
     public static ParseStringRes parseString(byte[] raw) {
         int length = parseInt(Arrays.copyOf(raw, 4));
         String str = new String(Arrays.copyOfRange(raw, 4, 4+length));
@@ -1,36 +1,36 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.List;
-import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.LongList;
+import top.guoziyang.mydb.backend.common.LongLongMap;
+import top.guoziyang.mydb.backend.common.LongObjectMap;
 import top.guoziyang.mydb.common.Error;
 
 /**
  * 维护了一个依赖等待图，以进行死锁检测.
  * 这里比较像OS中的死锁检测问题.
+ * 各个映射都用以long为键的开放寻址表和LongList存放,加锁、解锁的过程中不装箱.
  */
 public class LockTable {
     
-    private Map<Long, List<Long>> x2u;  // 某个XID已经获得的资源的UID列表
-    private Map<Long, Long> u2x;        // UID被某个XID持有
+    private LongObjectMap<LongList> x2u;    // 某个XID已经获得的资源的UID列表
+    private LongLongMap u2x;                // UID被某个XID持有
 
-    private Map<Long, List<Long>> wait; // 正在等待UID的XID列表
-    private Map<Long, Lock> waitLock;   // 正在等待资源的XID的锁
-    private Map<Long, Long> waitU;      // XID正在等待的UID
+    private LongObjectMap<LongList> wait;   // 正在等待UID的XID列表
+    private LongObjectMap<Lock> waitLock;   // 正在等待资源的XID的锁
+    private LongLongMap waitU;              // XID正在等待的UID
 
     private Lock lock;
 
     public LockTable() {
-        x2u = new HashMap<>();
-        u2x = new HashMap<>();
-        wait = new HashMap<>();
-        waitLock = new HashMap<>();
-        waitU = new HashMap<>();
+        x2u = new LongObjectMap<>();
+        u2x = new LongLongMap();
+        wait = new LongObjectMap<>();
+        waitLock = new LongObjectMap<>();
+        waitU = new LongLongMap();
+        xidStamp = new LongLongMap();
         lock = new ReentrantLock();
     }
 
@@ -78,11 +78,11 @@ public class LockTable {
         lock.lock();
         // 不存在,本次访问有效,打上一个stamp
         try {
-            List<Long> l = x2u.get(xid);
+            LongList l = x2u.get(xid);
             if(l != null) {
                 while(l.size() > 0) {
                     // 把自己持有的资源全部释放
-                    Long uid = l.remove(0);
+                    long uid = l.removeAt(0);
                     // (唤醒) 从阻塞队列中选取一个xid处理这个uid资源
                     selectNewXID(uid);
                 }
@@ -104,13 +104,13 @@ public class LockTable {
         // 获得自由,不再被某个xid所持有
         u2x.remove(uid);
         // 等待这个uid的xid列表.
-        List<Long> l = wait.get(uid);
+        LongList l = wait.get(uid);
         if(l == null) return;
         assert l.size() > 0;
 
         // 有thread在进行等待.
         while(l.size() > 0) {
-            long xid = l.remove(0);
+            long xid = l.removeAt(0);
             if(!waitLock.containsKey(xid)) {
                 continue;
             } else {
@@ -127,19 +127,22 @@ public class LockTable {
         if(l.size() == 0) wait.remove(uid);
     }
 
-    private Map<Long, Integer> xidStamp;
+    private LongLongMap xidStamp;
     private int stamp;
 
     // 这里做dfs检测是否有回环
     // 图不一定是连通图,但是只要出现circle,一定是死锁.
     private boolean hasDeadLock() {
-        xidStamp = new HashMap<>();
+        xidStamp.clear();
         stamp = 1;
-        for(long xid : x2u.keySet()) {
+        for(int i = 0; i < x2u.capacity(); i ++) {
+            if(!x2u.isUsed(i)) {
+                continue;
+            }
             // 拿到一个xid开始dfs
-            Integer s = xidStamp.get(xid);
+            long xid = x2u.keyAt(i);
             // 如果被打过时间戳,这意味着是被访问过的,直接跳过
-            if(s != null && s > 0) {
+            if(xidStamp.getOrDefault(xid, 0) > 0) {
                 continue;
             }
             // 每一轮访问都会 + 1
@@ -152,60 +155,47 @@ public class LockTable {
     }
 
     private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
+        long stp = xidStamp.getOrDefault(xid, 0);
         // 这意味着在本轮的访问中,我们找到了一个circle,出现了死锁
-        if(stp != null && stp == stamp) {
+        if(stp == stamp) {
             return true;
         }
         // 上一轮的,直接跳过.
-        if(stp != null && stp < stamp) {
+        if(stp > 0 && stp < stamp) {
             return false;
         }
         // 不存在,本次访问有效,打上一个stamp
         xidStamp.put(xid, stamp);
 
-        Long uid = waitU.get(xid);
-        if(uid == null) return false;
-        Long x = u2x.get(uid);
-        assert x != null;
-        return dfs(x);
+        if(!waitU.containsKey(xid)) return false;
+        long uid = waitU.getOrDefault(xid, 0);
+        assert u2x.containsKey(uid);
+        return dfs(u2x.getOrDefault(uid, 0));
     }
 
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private void removeFromList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
         if(l == null) return;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                i.remove();
-                break;
-            }
-        }
+        l.removeValue(uid1);
         if(l.size() == 0) {
             listMap.remove(uid0);
         }
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        if(!listMap.containsKey(uid0)) {
-            listMap.put(uid0, new ArrayList<>());
+    private void putIntoList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
+        if(l == null) {
+            l = new LongList();
+            listMap.put(uid0, l);
         }
-        listMap.get(uid0).add(0, uid1);
+        l.add(0, uid1);
     }
 
     // 返回uid0持有的列表中是否有uid1
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> l = listMap.get(uid0);
+    private boolean isInList(LongObjectMap<LongList> listMap, long uid0, long uid1) {
+        LongList l = listMap.get(uid0);
         if(l == null) return false;
-        Iterator<Long> i = l.iterator();
-        while(i.hasNext()) {
-            long e = i.next();
-            if(e == uid1) {
-                return true;
-            }
-        }
-        return false;
+        return l.contains(uid1);
     }
 
 }
@@ -1,8 +1,8 @@
 package top.guoziyang.mydb.backend.vm;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+import top.guoziyang.mydb.backend.common.LongList;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
 
 // vm对一个事务的抽象,目的是解决不可重复读的问题
@@ -15,36 +15,55 @@ public class Transaction {
     // 事务是否被自动中止
     public long xid;
     public int level;
-    public Map<Long, Boolean> snapshot;
+    // 可重复读时判断先后用的xid,不小于它的事务都在本事务之后开始;普通事务就是自己的xid,只读事务是开始时下一个要分配的xid
+    public long horizon;
+    public boolean readOnly;
+    public boolean asyncCommit;
+    // 快照: 开始时活跃的事务,升序排列;xmin是其中最小的,比它小的事务开始时一定已经结束
+    public long[] snapshot;
+    public long xmin;
     public Exception err;
     public boolean autoAborted;
 
     /**
      * 创建一个新的事务对象,并根据隔离级别生成快照,snapshot中包含了所有在该事务开始时活跃的事务id
+     * 快照只是活跃事务列表的一次数组复制,不逐个插入
      * @param xid 事务id
      * @param level 事务隔离级别
-     * @param active 当前活跃的事务列表
+     * @param active 当前活跃的事务列表,升序排列
      * @return 新的事务对象
      */
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, LongList active) {
+        return newTransaction(xid, level, xid, false, active);
+    }
+
+    // 只读事务的xid是虚拟的,不能拿来比较先后,所以单独给出horizon
+    public static Transaction newReadOnlyTransaction(long xid, int level, long horizon, LongList active) {
+        return newTransaction(xid, level, horizon, true, active);
+    }
+
+    private static Transaction newTransaction(long xid, int level, long horizon, boolean readOnly, LongList active) {
         Transaction t = new Transaction();
         t.xid = xid;
         t.level = level;
+        t.horizon = horizon;
+        t.readOnly = readOnly;
         if(level != 0) {
-            t.snapshot = new HashMap<>();
-            for(Long x : active.keySet()) {
-                t.snapshot.put(x, true);
-            }
+            t.snapshot = active.toArray();
+            t.xmin = t.snapshot.length > 0 ? t.snapshot[0] : horizon;
         }
         return t;
     }
 
-    // 判断某个事务是否存在于该事务的快照中
+    // 判断某个事务是否存在于该事务的快照中,[xmin, horizon)之外的直接排除,之内的二分查找
     public boolean isInSnapshot(long xid) {
         // 超级事务永远不可见
         if(xid == TransactionManagerImpl.SUPER_XID) {
             return false;
         }
-        return snapshot.containsKey(xid);
+        if(xid < xmin || xid >= horizon) {
+            return false;
+        }
+        return Arrays.binarySearch(snapshot, xid) >= 0;
     }
 }
@@ -12,7 +12,10 @@ public interface VersionManager {
     boolean delete(long xid, long uid) throws Exception;
 
     // 事务的操作.
-    long begin(int level);
+    // asyncCommit为true时,提交只把commit日志写进日志缓冲区就返回,由后台线程定时落盘
+    long begin(int level, boolean asyncCommit);
+    // 只读事务,不分配xid,返回的是负数的虚拟xid
+    long beginReadOnly(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
@@ -2,10 +2,13 @@ package top.guoziyang.mydb.backend.vm;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 import top.guoziyang.mydb.backend.common.AbstractCache;
+import top.guoziyang.mydb.backend.common.LongList;
 import top.guoziyang.mydb.backend.dm.DataManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManagerImpl;
@@ -17,26 +20,43 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     TransactionManager tm;
     DataManager dm;
     Map<Long, Transaction> activeTransaction;
+    // activeTransaction中的xid,不含SUPER_XID;xid在全局锁下递增分配,追加到末尾就是升序,新事务的快照直接复制它
+    LongList activeXids;
+    // 只读事务不分配xid,用负数的虚拟xid区分,单独存放,不用全局锁,也不会出现在其他事务的快照里
+    Map<Long, Transaction> readOnlyTransaction;
+    AtomicLong readOnlyCounter;
     Lock lock;
     LockTable lt;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
-        super(0);
+        super(0, false, DEFAULT_SEGMENTS);
         this.tm = tm;
         this.dm = dm;
         this.activeTransaction = new HashMap<>();
+        this.activeXids = new LongList();
+        this.readOnlyTransaction = new ConcurrentHashMap<>();
+        this.readOnlyCounter = new AtomicLong();
         activeTransaction.put(TransactionManagerImpl.SUPER_XID, Transaction.newTransaction(TransactionManagerImpl.SUPER_XID, 0, null));
         this.lock = new ReentrantLock();
         this.lt = new LockTable();
     }
 
+    private Transaction getTransaction(long xid) {
+        if(xid < 0) {
+            return readOnlyTransaction.get(xid);
+        }
+        lock.lock();
+        try {
+            return activeTransaction.get(xid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
     // 注意判断可见性.
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
-
+        Transaction t = getTransaction(xid);
         if(t.err != null) {
             throw t.err;
         }
@@ -65,13 +85,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     // 直接包装成entry存进去即可.
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
-
+        Transaction t = getTransaction(xid);
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
 
         byte[] raw = Entry.wrapEntryRaw(xid, data);
         return dm.insert(xid, raw);
@@ -79,13 +99,13 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public boolean delete(long xid, long uid) throws Exception {
-        lock.lock();
-        Transaction t = activeTransaction.get(xid);
-        lock.unlock();
-
+        Transaction t = getTransaction(xid);
         if(t.err != null) {
             throw t.err;
         }
+        if(t.readOnly) {
+            throw Error.ReadOnlyTransactionException;
+        }
         Entry entry = null;
         try {
             entry = super.get(uid);
@@ -141,21 +161,46 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     /**
      * begin() 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照(可重复读)使用.
      * @param level 事务的隔离等级
+     * @param asyncCommit 是否异步提交
      * @return 创建事务的xid
      */
     @Override
-    public long begin(int level) {
+    public long begin(int level, boolean asyncCommit) {
         lock.lock();
         try {
             long xid = tm.begin();
-            Transaction t = Transaction.newTransaction(xid, level, activeTransaction);
+            Transaction t = Transaction.newTransaction(xid, level, activeXids);
+            t.asyncCommit = asyncCommit;
             activeTransaction.put(xid, t);
+            activeXids.add(xid);
             return xid;
         } finally {
             lock.unlock();
         }
     }
 
+    /**
+     * 开启一个只读事务,不写XID文件也不写日志
+     * 读提交不需要快照,完全不碰全局锁;可重复读在全局锁下复制快照,并把下一个要分配的xid作为先后的分界
+     */
+    @Override
+    public long beginReadOnly(int level) {
+        long xid = -readOnlyCounter.incrementAndGet();
+        Transaction t;
+        if(level == 0) {
+            t = Transaction.newReadOnlyTransaction(xid, level, 0, null);
+        } else {
+            lock.lock();
+            try {
+                t = Transaction.newReadOnlyTransaction(xid, level, tm.nextXid(), activeXids);
+            } finally {
+                lock.unlock();
+            }
+        }
+        readOnlyTransaction.put(xid, t);
+        return xid;
+    }
+
     /**
      * commit() 方法提交一个事务，主要就是 free 掉相关的结构，并且释放持有的锁，并修改 TM 状态.
      * @param xid   事务的xid.
@@ -163,6 +208,10 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
+        if(xid < 0) {
+            readOnlyTransaction.remove(xid);
+            return;
+        }
         lock.lock();
         // 拿到本来是活跃的事务
         Transaction t = activeTransaction.get(xid);
@@ -181,11 +230,16 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
         lock.lock();
         // 移除活跃事务
-        activeTransaction.remove(xid);
+        removeActive(xid);
         lock.unlock();
 
         lt.remove(xid);
-        tm.commit(xid);
+        // commit日志落盘之后才修改事务状态,异步提交不等落盘
+        if(t.asyncCommit) {
+            dm.commitAsync(xid);
+        } else {
+            dm.commit(xid);
+        }
     }
 
     // 回滚事务
@@ -196,18 +250,33 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     // 搞清楚和上面的逻辑.
     private void internAbort(long xid, boolean autoAborted) {
+        if(xid < 0) {
+            readOnlyTransaction.remove(xid);
+            return;
+        }
         lock.lock();
         Transaction t = activeTransaction.get(xid);
         if(!autoAborted) {
             // 手动事务回滚
-            activeTransaction.remove(xid);
+            removeActive(xid);
         }
         lock.unlock();
 
         if(t.autoAborted) return;
         // 死锁或者版本跳跃的时候,都会进行自动回滚.
         lt.remove(xid);
-        tm.abort(xid);
+        dm.abort(xid);
+    }
+
+    // 调用者持有全局锁
+    private void removeActive(long xid) {
+        if(activeTransaction.remove(xid) == null) {
+            return;
+        }
+        int i = activeXids.binarySearch(xid);
+        if(i >= 0) {
+            activeXids.removeAt(i);
+        }
     }
 
     public void releaseEntry(Entry entry) {
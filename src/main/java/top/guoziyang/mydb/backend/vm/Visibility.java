@@ -13,7 +13,7 @@ public class Visibility {
         } else {
             // 之前有一个事务:
             //      修改了并且已经提交 && 这个事务还是我不可见的事务!
-            return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(xmax));
+            return tm.isCommitted(xmax) && (xmax >= t.horizon || t.isInSnapshot(xmax));
         }
     }
 
@@ -69,13 +69,13 @@ public class Visibility {
         if(xmin == xid && xmax == 0) return true;
 
         // 创建该记录的事务已提交,且在当前事务开始前就已经提交,且不在当前事务的活跃快照中
-        if(tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xmin)) {
+        if(tm.isCommitted(xmin) && xmin < t.horizon && !t.isInSnapshot(xmin)) {
             // 并且还未被删除,就是可见的
             if(xmax == 0) return true;
             // 否则,如果删除该记录的事务不是自己且未提交,或者在当前事务的活跃快照中,也是可见的
             // 说白了,在我可重复读级别看来,你就是没删除也没修改
             if(xmax != xid) {
-                if(!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax)) {
+                if(!tm.isCommitted(xmax) || xmax >= t.horizon || t.isInSnapshot(xmax)) {
                     return true;
                 }
             }
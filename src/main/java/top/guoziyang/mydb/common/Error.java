@@ -13,6 +13,7 @@ public class Error {
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
+    public static final Exception UnsupportedPageCacheModeException = new RuntimeException("Page cache mode not supported!");
 
     // tm
     public static final Exception BadXIDFileException = new RuntimeException("Bad XID file!");
@@ -21,6 +22,7 @@ public class Error {
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
+    public static final Exception ReadOnlyTransactionException = new RuntimeException("Cannot write in read only transaction!");
 
     // tbm
     public static final Exception InvalidFieldException = new RuntimeException("Invalid field type!");
@@ -0,0 +1,74 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * AbstractCache的简单吞吐测试,不是JUnit测试,手动运行:
+ * mvn -q test-compile && java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.common.CacheBench [毫秒]
+ *
+ * 所有key都常驻在缓存里,每次操作是一次命中的get加release,测的是锁的开销
+ * 1个段相当于分段之前的全局锁,和DEFAULT_SEGMENTS个段对比,线程数依次为1,2,4,8,16
+ */
+public class CacheBench {
+
+    private static final int KEYS = 10000;
+
+    public static void main(String[] args) throws Exception {
+        long millis = args.length > 0 ? Long.parseLong(args[0]) : 2000;
+        System.out.println("cpus: " + Runtime.getRuntime().availableProcessors());
+        for(int segments : new int[]{1, AbstractCache.DEFAULT_SEGMENTS}) {
+            for(int threads = 1; threads <= 16; threads <<= 1) {
+                // 先跑一轮预热,结果丢掉
+                run(segments, threads, millis / 4);
+                long ops = run(segments, threads, millis);
+                System.out.printf("segments=%-3d threads=%-3d %8d ops/ms%n", segments, threads, ops / millis);
+            }
+        }
+    }
+
+    private static long run(int segments, int threads, long millis) throws Exception {
+        AbstractCache<Long> cache = new AbstractCache<Long>(KEYS, true, segments) {
+            @Override
+            protected Long getForCache(long key) {
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {
+            }
+        };
+        for(long key = 0; key < KEYS; key ++) {
+            cache.get(key);
+            cache.release(key);
+        }
+        AtomicLong total = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + millis;
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    while(System.currentTimeMillis() < deadline) {
+                        for(int j = 0; j < 1000; j ++) {
+                            long key = random.nextInt(KEYS);
+                            cache.get(key);
+                            cache.release(key);
+                        }
+                        ops += 1000;
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+                total.addAndGet(ops);
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+}
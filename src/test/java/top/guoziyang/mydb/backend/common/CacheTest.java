@@ -3,6 +3,7 @@ package top.guoziyang.mydb.backend.common;
 import java.security.SecureRandom;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -31,6 +32,100 @@ public class CacheTest {
         }
     }
 
+    // 分段的常驻缓存: 多个线程并发读写,总的资源数不能超过上限,也不会因为别的段已满而误报缓存已满
+    @Test
+    public void testShardedCache() throws Exception {
+        int capacity = 20, workers = 8;
+        AtomicInteger resident = new AtomicInteger(0);
+        AtomicInteger maxResident = new AtomicInteger(0);
+        AbstractCache<Long> sharded = new AbstractCache<Long>(capacity, true, AbstractCache.DEFAULT_SEGMENTS) {
+            @Override
+            protected Long getForCache(long key) throws Exception {
+                maxResident.accumulateAndGet(resident.incrementAndGet(), Math::max);
+                return key;
+            }
+            @Override
+            protected void releaseForCache(Long obj) {
+                resident.decrementAndGet();
+            }
+        };
+        AtomicInteger errors = new AtomicInteger(0);
+        CountDownLatch done = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            new Thread(() -> {
+                try {
+                    for(int j = 0; j < 20000; j ++) {
+                        long key = random.nextInt(200);
+                        long h = sharded.get(key);
+                        if(h != key) errors.incrementAndGet();
+                        sharded.release(key);
+                    }
+                } catch (Exception e) {
+                    errors.incrementAndGet();
+                }
+                done.countDown();
+            }).start();
+        }
+        done.await();
+        assert errors.get() == 0;
+        assert maxResident.get() <= capacity;
+        sharded.close();
+        assert resident.get() == 0;
+    }
+
+    @Test
+    public void testConcurrentLoad() throws Exception {
+        concurrentLoad(1);
+        concurrentLoad(-1);
+    }
+
+    // 多个线程同时请求同一个正在加载的资源,只会加载一次,并拿到同一个对象或同一个异常
+    private void concurrentLoad(long key) throws Exception {
+        AtomicInteger loads = new AtomicInteger(0);
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch go = new CountDownLatch(1);
+        AbstractCache<Object> slow = new AbstractCache<Object>(0) {
+            @Override
+            protected Object getForCache(long key) throws Exception {
+                loads.incrementAndGet();
+                started.countDown();
+                go.await();
+                if(key < 0) throw Error.NullEntryException;
+                return new Object();
+            }
+            @Override
+            protected void releaseForCache(Object obj) {}
+        };
+
+        int workers = 8;
+        Object[] got = new Object[workers];
+        Exception[] errs = new Exception[workers];
+        CountDownLatch done = new CountDownLatch(workers);
+        for(int i = 0; i < workers; i ++) {
+            final int id = i;
+            new Thread(() -> {
+                try {
+                    got[id] = slow.get(key);
+                } catch (Exception e) {
+                    errs[id] = e;
+                }
+                done.countDown();
+            }).start();
+            if(i == 0) started.await();
+        }
+        Thread.sleep(50);
+        go.countDown();
+        done.await();
+        assert loads.get() == 1;
+        for(int i = 0; i < workers; i ++) {
+            if(key > 0) {
+                assert got[i] != null && got[i] == got[0];
+            } else {
+                assert errs[i] == Error.NullEntryException;
+            }
+        }
+    }
+
     private void work() {
         for(int i = 0; i < 1000; i++) {
             long uid = random.nextInt();
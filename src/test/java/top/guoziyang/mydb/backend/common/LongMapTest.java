@@ -0,0 +1,74 @@
+package top.guoziyang.mydb.backend.common;
+
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class LongMapTest {
+
+    static Random random = new SecureRandom();
+
+    // 随机的增删改和HashMap对照,键的范围很小,删除时会频繁触发元素前移
+    @Test
+    public void testLongMaps() {
+        LongObjectMap<Long> om = new LongObjectMap<>();
+        LongLongMap lm = new LongLongMap();
+        Map<Long, Long> expect = new HashMap<>();
+        for(int i = 0; i < 200000; i ++) {
+            long key = random.nextInt(500) - 250;
+            int op = random.nextInt(3);
+            if(op == 0) {
+                long value = random.nextLong();
+                Long old = om.put(key, value);
+                assert old == null ? !expect.containsKey(key) : old.equals(expect.get(key));
+                lm.put(key, value);
+                expect.put(key, value);
+            } else if(op == 1) {
+                Long old = om.remove(key);
+                assert old == null ? !expect.containsKey(key) : old.equals(expect.get(key));
+                assert lm.remove(key) == expect.containsKey(key);
+                expect.remove(key);
+            } else {
+                assert om.containsKey(key) == expect.containsKey(key);
+                assert lm.getOrDefault(key, 7) == expect.getOrDefault(key, 7L);
+            }
+            assert om.size() == expect.size() && lm.size() == expect.size();
+        }
+        int seen = 0;
+        for(int i = 0; i < om.capacity(); i ++) {
+            if(om.isUsed(i)) {
+                assert om.valueAt(i).equals(expect.get(om.keyAt(i)));
+                seen ++;
+            }
+        }
+        assert seen == expect.size();
+    }
+
+    @Test
+    public void testLongList() {
+        LongList l = new LongList(1);
+        List<Long> expect = new ArrayList<>();
+        for(int i = 0; i < 10000; i ++) {
+            long e = random.nextInt(50);
+            int op = random.nextInt(4);
+            if(op == 0) {
+                l.add(e);
+                expect.add(e);
+            } else if(op == 1) {
+                l.add(0, e);
+                expect.add(0, e);
+            } else if(op == 2 && expect.size() > 0) {
+                assert l.removeAt(0) == expect.remove(0);
+            } else {
+                assert l.removeValue(e) == expect.remove((Long)e);
+            }
+            assert l.size() == expect.size();
+            assert l.contains(e) == expect.contains(e);
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package top.guoziyang.mydb.backend.dm;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -14,6 +15,9 @@ import org.junit.Test;
 
 import top.guoziyang.mydb.backend.common.SubArray;
 import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
+import top.guoziyang.mydb.backend.dm.page.Page;
+import top.guoziyang.mydb.backend.dm.page.PageOne;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -109,7 +113,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TESTDMSingle.db").delete();
-        new File("/tmp/TESTDMSingle.log").delete();
+        Logger.remove("/tmp/TESTDMSingle");
     }
 
     @Test
@@ -129,7 +133,7 @@ public class DataManagerTest {
         dm0.close(); mdm.close();
 
         new File("/tmp/TestDMMulti.db").delete();
-        new File("/tmp/TestDMMulti.log").delete();
+        Logger.remove("/tmp/TestDMMulti");
     }
 
     @Test
@@ -150,12 +154,410 @@ public class DataManagerTest {
                 new Thread(r).run();
             }
             cdl.await();
+            if(i < 7) {
+                // 不close,模拟崩溃,下一轮打开时恢复
+                ((DataManagerImpl)dm0).crash();
+            }
         }
         dm0.close(); mdm.close();
         
         new File("/tmp/TestRecoverySimple.db").delete();
-        new File("/tmp/TestRecoverySimple.log").delete();
+        Logger.remove("/tmp/TestRecoverySimple");
         new File("/tmp/TestRecoverySimple.xid").delete();
 
     }
+
+    @Test
+    public void testRecoveryCheckpoint() throws Exception {
+        String path = "/tmp/TestRecoveryCheckpoint";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        for(int i = 0; i < 400; i ++) {
+            if(i == 200) {
+                dm0.checkpoint();
+            }
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(60);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+            dm0.commit(xid);
+        }
+        // 不close,模拟崩溃,恢复时从检查点开始读日志
+        dm0.crash();
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            assert di != null;
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRecoveryUndo() throws Exception {
+        String path = "/tmp/TestRecoveryUndo";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        long committed = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm0.insert(committed, data);
+        dm0.commit(committed);
+
+        // 未提交的事务插入很多条并修改已提交的数据,恢复时要倒序撤销
+        long active = tm0.begin();
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 200; i ++) {
+            uids.add(dm0.insert(active, RandomUtil.randomBytes(60)));
+        }
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        Arrays.fill(sa.raw, sa.start, sa.end, (byte)1);
+        di.after(active);
+        di.release();
+        // 之后提交的事务把active的日志一起带到磁盘上
+        long other = tm0.begin();
+        dm0.insert(other, RandomUtil.randomBytes(60));
+        dm0.commit(other);
+        ((DataManagerImpl)dm0).crash();
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        assert tm0.isAborted(active);
+        for(long u : uids) {
+            assert dm1.read(u) == null;
+        }
+        di = dm1.read(uid);
+        sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRecoveryParallelRedo() throws Exception {
+        String path = "/tmp/TestRecoveryParallelRedo";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        List<Long> uids = new ArrayList<>();
+        List<byte[]> datas = new ArrayList<>();
+        // 数据分布在几十个页面上,redo会分给多个线程
+        for(int i = 0; i < 300; i ++) {
+            long xid = tm0.begin();
+            byte[] data = RandomUtil.randomBytes(1000);
+            uids.add(dm0.insert(xid, data));
+            datas.add(data);
+            dm0.commit(xid);
+        }
+
+        // 不close,模拟崩溃,然后用4个线程redo
+        ((DataManagerImpl)dm0).crash();
+        PageCache pc = PageCache.open(path, PageCache.PAGE_SIZE*30);
+        Logger lg = Logger.open(path);
+        Recover.recover(tm0, lg, pc, 4);
+        Page one = pc.getPage(1);
+        PageOne.setVcClose(one);
+        one.release();
+        lg.close();
+        pc.close();
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        for(int i = 0; i < uids.size(); i ++) {
+            DataItem di = dm1.read(uids.get(i));
+            SubArray sa = di.data();
+            assert Arrays.equals(datas.get(i), Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+            di.release();
+        }
+        dm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    @Test
+    public void testRecoveryDelta() throws Exception {
+        String path = "/tmp/TestRecoveryDelta";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        long xid = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(1000);
+        long uid = dm0.insert(xid, data);
+        dm0.commit(xid);
+
+        // 只改几个字节,日志只记录修改的区间
+        long committed = tm0.begin();
+        DataItem di = dm0.read(uid);
+        di.before();
+        SubArray sa = di.data();
+        for(int i = 0; i < 8; i ++) {
+            sa.raw[sa.start + 100 + i] ^= 0xFF;
+            data[100 + i] ^= 0xFF;
+        }
+        sa.raw[sa.start + 500] ^= 0xFF;
+        data[500] ^= 0xFF;
+        di.after(committed);
+        dm0.commit(committed);
+
+        long active = tm0.begin();
+        di.before();
+        sa.raw[sa.start + 300] ^= 0xFF;
+        di.after(active);
+        di.release();
+        // 之后提交的事务把active的日志一起带到磁盘上
+        long other = tm0.begin();
+        dm0.insert(other, RandomUtil.randomBytes(60));
+        dm0.commit(other);
+        ((DataManagerImpl)dm0).crash();
+
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm0);
+        di = dm1.read(uid);
+        sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // XID文件里的状态是延迟写的,丢了之后从commit/abort日志重建
+    @Test
+    public void testRecoveryCommitLog() throws Exception {
+        String path = "/tmp/TestRecoveryCommitLog";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        long committed = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm0.insert(committed, data);
+        dm0.commit(committed);
+        long aborted = tm0.begin();
+        dm0.insert(aborted, RandomUtil.randomBytes(60));
+        dm0.abort(aborted);
+        long active = tm0.begin();
+        long activeUid = dm0.insert(active, RandomUtil.randomBytes(60));
+        long other = tm0.begin();
+        dm0.insert(other, RandomUtil.randomBytes(60));
+        dm0.commit(other);
+        ((DataManagerImpl)dm0).crash();
+
+        // 模拟崩溃时XID文件里的状态还没写下去
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw")) {
+            for(long xid = committed; xid <= other; xid ++) {
+                raf.seek(8 + xid - 1);
+                raf.write(0);
+            }
+        }
+        TransactionManager tm1 = TransactionManager.open(path);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm1);
+        assert tm1.isCommitted(committed);
+        assert tm1.isAborted(aborted);
+        assert tm1.isAborted(active);
+        assert tm1.isCommitted(other);
+        assert dm1.read(activeUid) == null;
+        DataItem di = dm1.read(uid);
+        SubArray sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm1.close();
+        tm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 异步提交的commit日志没落盘就崩溃,即使XID文件里已经是committed,也要整个撤销
+    @Test
+    public void testRecoveryAsyncCommit() throws Exception {
+        String path = "/tmp/TestRecoveryAsyncCommit";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManager dm0 = DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        dm0.setAsyncCommitDelay(1000 * 1000);
+        long lost = tm0.begin();
+        long lostUid = dm0.insert(lost, RandomUtil.randomBytes(60));
+        long sync = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(60);
+        long uid = dm0.insert(sync, data);
+        dm0.commit(sync);
+        long cut = ((DataManagerImpl)dm0).logger.tailLsn();
+        dm0.commitAsync(lost);
+        assert tm0.isCommitted(lost);
+        ((DataManagerImpl)dm0).crash();
+
+        // 模拟崩溃时commit日志还没落盘: 把它从段文件里抹掉,日志只用了第一个段,段内偏移是cut - 段大小
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".log/00000001.seg", "rw")) {
+            raf.seek(cut - (1 << 24));
+            raf.write(new byte[64]);
+        }
+
+        TransactionManager tm1 = TransactionManager.open(path);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm1);
+        assert tm1.isAborted(lost);
+        assert dm1.read(lostUid) == null;
+        assert tm1.isCommitted(sync);
+        DataItem di = dm1.read(uid);
+        SubArray sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+
+        // 后台线程在延迟之内把异步提交落盘
+        dm1.setAsyncCommitDelay(5);
+        long async = tm1.begin();
+        long asyncUid = dm1.insert(async, data);
+        dm1.commitAsync(async);
+        Thread.sleep(500);
+        ((DataManagerImpl)dm1).crash();
+
+        TransactionManager tm2 = TransactionManager.open(path);
+        DataManager dm2 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm2);
+        assert tm2.isCommitted(async);
+        di = dm2.read(asyncUid);
+        assert di != null;
+        di.release();
+        dm2.close();
+        tm2.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 一直被引用的脏页也要在检查点写回,否则它的recLsn不会前进,日志永远回收不了
+    @Test
+    public void testCheckpointPinnedPage() throws Exception {
+        String path = "/tmp/TestCheckpointPinnedPage";
+        TransactionManager tm0 = TransactionManager.create(path);
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        long xid = tm0.begin();
+        byte[] data = RandomUtil.randomBytes(4000);
+        long uid = dm0.insert(xid, data);
+        dm0.commit(xid);
+
+        DataItem di = dm0.read(uid);
+        SubArray sa = di.data();
+        xid = tm0.begin();
+        di.before();
+        sa.raw[sa.start] ^= 0xFF;
+        data[0] ^= 0xFF;
+        di.after(xid);
+        dm0.commit(xid);
+        dm0.checkpoint();
+
+        // 页面一直被引用,每次修改整条数据,让日志写满第一个段
+        xid = tm0.begin();
+        for(int i = 0; i < 3000; i ++) {
+            di.before();
+            for(int j = 0; j < data.length; j ++) {
+                sa.raw[sa.start + j] ^= 0xFF;
+                data[j] ^= 0xFF;
+            }
+            di.after(xid);
+        }
+        dm0.commit(xid);
+        assert dm0.logger.tailLsn() >= 2L << 24;
+        dm0.checkpoint();
+        assert !new File(path + ".log/00000001.seg").exists();
+
+        di.release();
+        dm0.close();
+        tm0.close();
+        TransactionManager tm1 = TransactionManager.open(path);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm1);
+        di = dm1.read(uid);
+        sa = di.data();
+        assert Arrays.equals(data, Arrays.copyOfRange(sa.raw, sa.start, sa.end));
+        di.release();
+        dm1.close();
+        tm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 检查点在XID文件落盘时崩溃,这时还不能记下检查点,恢复仍要从之前的commit日志重建状态
+    @Test
+    public void testCheckpointCrashBeforeXidSync() throws Exception {
+        String path = "/tmp/TestCheckpointCrashBeforeXidSync";
+        CrashOnSyncTransactionManager tm0 = new CrashOnSyncTransactionManager(TransactionManager.create(path));
+        DataManagerImpl dm0 = (DataManagerImpl)DataManager.create(path, PageCache.PAGE_SIZE*30, tm0);
+        List<Long> xids = new ArrayList<>();
+        List<Long> uids = new ArrayList<>();
+        for(int i = 0; i < 10; i ++) {
+            long xid = tm0.begin();
+            uids.add(dm0.insert(xid, RandomUtil.randomBytes(60)));
+            dm0.commit(xid);
+            xids.add(xid);
+        }
+        tm0.crash = true;
+        try {
+            dm0.checkpoint();
+            assert false;
+        } catch(IllegalStateException e) {
+        }
+        dm0.crash();
+
+        // XID文件没有落盘,里面的状态丢了
+        try(RandomAccessFile raf = new RandomAccessFile(path + ".xid", "rw")) {
+            for(long xid : xids) {
+                raf.seek(8 + xid - 1);
+                raf.write(0);
+            }
+        }
+        TransactionManager tm1 = TransactionManager.open(path);
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*30, tm1);
+        for(long xid : xids) {
+            assert tm1.isCommitted(xid);
+        }
+        for(long uid : uids) {
+            DataItem di = dm1.read(uid);
+            assert di != null;
+            di.release();
+        }
+        dm1.close();
+        tm1.close();
+
+        new File(path + ".db").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // sync时模拟崩溃,其余操作交给真正的TransactionManager
+    static class CrashOnSyncTransactionManager implements TransactionManager {
+        TransactionManager tm;
+        boolean crash;
+
+        CrashOnSyncTransactionManager(TransactionManager tm) {
+            this.tm = tm;
+        }
+
+        public long begin() { return tm.begin(); }
+        public void commit(long xid) { tm.commit(xid); }
+        public void abort(long xid) { tm.abort(xid); }
+        public boolean isActive(long xid) { return tm.isActive(xid); }
+        public boolean isCommitted(long xid) { return tm.isCommitted(xid); }
+        public boolean isAborted(long xid) { return tm.isAborted(xid); }
+        public long nextXid() { return tm.nextXid(); }
+        public void close() { tm.close(); }
+
+        public void sync() {
+            if(crash) {
+                throw new IllegalStateException("crash");
+            }
+            tm.sync();
+        }
+    }
 }
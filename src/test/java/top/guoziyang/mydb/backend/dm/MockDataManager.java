@@ -51,6 +51,18 @@ public class MockDataManager implements DataManager {
         }
     }
 
+    @Override
+    public void commit(long xid) {}
+
+    @Override
+    public void commitAsync(long xid) {}
+
+    @Override
+    public void setAsyncCommitDelay(long millis) {}
+
+    @Override
+    public void abort(long xid) {}
+
     @Override
     public void close() {}
     
@@ -48,6 +48,11 @@ public class MockDataItem implements DataItem {
         wLock.unlock();
     }
 
+    @Override
+    public void afterMove(long xid, int from, int to, int len) {
+        wLock.unlock();
+    }
+
     @Override
     public void release() {}
 
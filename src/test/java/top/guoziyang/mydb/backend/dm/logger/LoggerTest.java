@@ -1,6 +1,9 @@
 package top.guoziyang.mydb.backend.dm.logger;
 
 import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Random;
 
 import org.junit.Test;
 
@@ -43,6 +46,164 @@ public class LoggerTest {
 
         lg.close();
 
-        assert new File("/tmp/logger_test.log").delete();
+        assert Logger.remove("/tmp/logger_test");
+    }
+
+    @Test
+    public void testGroupCommit() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_group_test");
+        int threads = 8, perThread = 200;
+        Thread[] ts = new Thread[threads];
+        for(int t = 0; t < threads; t ++) {
+            int id = t;
+            ts[t] = new Thread(() -> {
+                long last = 0;
+                for(int i = 0; i < perThread; i ++) {
+                    long lsn = lg.log((id + ":" + i).getBytes());
+                    assert lsn > last;
+                    last = lsn;
+                    if(i % 20 == 0) {
+                        lg.flush(lsn);
+                    }
+                }
+            });
+            ts[t].start();
+        }
+        for(Thread t : ts) {
+            t.join();
+        }
+        // 不close直接重新打开,模拟进程崩溃: log返回之后日志已经在文件里,XChecksum也要对得上
+        Logger lg1 = Logger.open("/tmp/logger_group_test");
+        lg1.rewind();
+        int[] next = new int[threads];
+        int count = 0;
+        while(true) {
+            byte[] log = lg1.next();
+            if(log == null) break;
+            String[] parts = new String(log).split(":");
+            int id = Integer.parseInt(parts[0]);
+            // 同一个线程的日志按顺序出现
+            assert Integer.parseInt(parts[1]) == next[id];
+            next[id] ++;
+            count ++;
+        }
+        assert count == threads * perThread;
+        lg1.close();
+
+        assert Logger.remove("/tmp/logger_group_test");
+    }
+
+    @Test
+    public void testSegments() throws Exception {
+        // 段很小,几十条日志就会跨越多个段
+        Logger lg = Logger.create("/tmp/logger_segment_test", 256);
+        long[] lsns = new long[100];
+        for(int i = 0; i < 100; i ++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+            assert i == 0 || lsns[i] > lsns[i-1];
+        }
+        lg.close();
+
+        // 在最后一个段末尾写一段坏尾巴,打开时应该被截掉
+        File dir = new File("/tmp/logger_segment_test.log");
+        File[] segs = dir.listFiles();
+        Arrays.sort(segs);
+        assert segs.length > 1;
+        try(RandomAccessFile raf = new RandomAccessFile(segs[segs.length-1], "rw")) {
+            raf.seek(raf.length());
+            raf.write(new byte[]{0, 0, 0, 9, 1, 2, 3});
+        }
+
+        lg = Logger.open("/tmp/logger_segment_test", 256);
+        lg.rewind();
+        for(int i = 0; i < 100; i ++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert lg.next() == null;
+
+        // 回收第50条日志之前的段,之后读到的第一条日志就是第50条所在段的开头
+        lg.truncateBefore(lsns[50]);
+        long more = lg.log("more".getBytes());
+        assert more > lsns[99];
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_segment_test", 256);
+        lg.rewind();
+        String first = new String(lg.next());
+        int firstNo = Integer.parseInt(first.substring(3));
+        assert firstNo > 0 && firstNo <= 50;
+        for(int i = firstNo + 1; i < 100; i ++) {
+            assert ("log" + i).equals(new String(lg.next()));
+        }
+        assert "more".equals(new String(lg.next()));
+        assert lg.next() == null;
+        lg.close();
+
+        assert Logger.remove("/tmp/logger_segment_test");
+    }
+
+    @Test
+    public void testReadWhileLogging() throws Exception {
+        // 读日志的缓冲区不能缓存还没写出的位置,边写边读时要能读到新写的日志
+        Logger lg = Logger.create("/tmp/logger_read_test");
+        long[] lsns = new long[200];
+        int read = 0;
+        for(int i = 0; i < 200; i ++) {
+            lsns[i] = lg.log(("log" + i).getBytes());
+            if(i % 10 == 9) {
+                while(true) {
+                    byte[] log = lg.next();
+                    if(log == null) break;
+                    assert ("log" + read).equals(new String(log));
+                    assert lg.readLsn() == lsns[read];
+                    read ++;
+                }
+                assert read == i + 1;
+            }
+        }
+        assert "log123".equals(new String(lg.read(lsns[123])));
+        lg.close();
+
+        assert Logger.remove("/tmp/logger_read_test");
+    }
+
+    @Test
+    public void testCompression() throws Exception {
+        Logger lg = Logger.create("/tmp/logger_compress_test");
+        Random random = new Random(1);
+        byte[][] logs = new byte[60][];
+        for(int i = 0; i < logs.length; i ++) {
+            if(i % 3 == 0) {
+                // 重复的大日志,压缩后很短
+                byte[] raw = new byte[4000];
+                Arrays.fill(raw, (byte)i);
+                logs[i] = raw;
+            } else if(i % 3 == 1) {
+                // 随机数据压缩不了,原样写入
+                logs[i] = new byte[2000];
+                random.nextBytes(logs[i]);
+            } else {
+                logs[i] = ("small" + i).getBytes();
+            }
+        }
+        long begin = lg.tailLsn();
+        long[] lsns = new long[logs.length];
+        for(int i = 0; i < logs.length; i ++) {
+            lsns[i] = lg.log(logs[i]);
+        }
+        // 20条4000字节的重复日志压缩之后只剩几十字节,总长度主要是随机数据
+        assert lg.tailLsn() - begin < 20 * 2100 + 20 * 200 + 20 * 100;
+        assert Arrays.equals(logs[30], lg.read(lsns[30]));
+        lg.close();
+
+        lg = Logger.open("/tmp/logger_compress_test");
+        lg.rewind();
+        for(int i = 0; i < logs.length; i ++) {
+            assert Arrays.equals(logs[i], lg.next());
+        }
+        assert lg.next() == null;
+        lg.close();
+
+        assert Logger.remove("/tmp/logger_compress_test");
     }
 }
@@ -1,5 +1,7 @@
 package top.guoziyang.mydb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -46,5 +48,23 @@ public class MockPage implements Page {
     public byte[] getData() {
         return data;
     }
+
+    @Override
+    public ByteBuffer getBuffer() {
+        return ByteBuffer.wrap(data);
+    }
+
+    @Override
+    public long getLsn() {
+        return 0;
+    }
+
+    @Override
+    public void setLsn(long lsn) {}
+
+    @Override
+    public long getRecLsn() {
+        return 0;
+    }
     
 }
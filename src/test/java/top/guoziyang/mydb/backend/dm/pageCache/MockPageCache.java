@@ -2,10 +2,13 @@ package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import top.guoziyang.mydb.backend.common.LongLongMap;
 import top.guoziyang.mydb.backend.dm.page.MockPage;
 import top.guoziyang.mydb.backend.dm.page.Page;
 
@@ -38,9 +41,24 @@ public class MockPageCache implements PageCache {
         }
     }
 
+    @Override
+    public CompletableFuture<Page> getPageAsync(int pgno) {
+        try {
+            return CompletableFuture.completedFuture(getPage(pgno));
+        } catch(Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    @Override
+    public void prefetch(int... pgnos) {}
+
     @Override
     public void close() {}
 
+    @Override
+    public void crash() {}
+
     @Override
     public void release(Page page) {}
 
@@ -54,5 +72,19 @@ public class MockPageCache implements PageCache {
 
     @Override
     public void flushPage(Page pg) {}
+
+    @Override
+    public void sync() {}
+
+    @Override
+    public void writePinned() {}
+
+    @Override
+    public LongLongMap dirtyPageTable() {
+        return new LongLongMap();
+    }
+
+    @Override
+    public void setLogFlusher(LongConsumer flusher) {}
     
 }
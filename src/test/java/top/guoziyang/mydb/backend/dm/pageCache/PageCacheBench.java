@@ -0,0 +1,71 @@
+package top.guoziyang.mydb.backend.dm.pageCache;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import top.guoziyang.mydb.backend.dm.page.Page;
+
+/**
+ * 页面缓存未命中的吞吐测试,不是JUnit测试,手动运行:
+ * mvn -q test-compile && java -cp target/classes:target/test-classes top.guoziyang.mydb.backend.dm.pageCache.PageCacheBench [数据库文件路径] [毫秒]
+ *
+ * 先建一个PAGES页的文件,再用只有CACHE_PAGES页的缓存随机读,几乎每次getPage都是一次未命中的文件读,
+ * 线程数依次为1,2,4,8,16. 文件会在操作系统的页缓存里,测的是读路径上的锁,不是磁盘本身;
+ * 要看磁盘层面的并发,把路径放到NVMe上并让文件大于内存
+ */
+public class PageCacheBench {
+
+    private static final int PAGES = 4096;
+    private static final int CACHE_PAGES = 64;
+
+    public static void main(String[] args) throws Exception {
+        String path = args.length > 0 ? args[0] : "/tmp/pcache_bench";
+        long millis = args.length > 1 ? Long.parseLong(args[1]) : 2000;
+        PageCache pc = PageCache.create(path, (long)PageCache.PAGE_SIZE * CACHE_PAGES);
+        for(int i = 0; i < PAGES; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        pc.close();
+
+        System.out.println("cpus: " + Runtime.getRuntime().availableProcessors());
+        pc = PageCache.open(path, (long)PageCache.PAGE_SIZE * CACHE_PAGES);
+        for(int threads = 1; threads <= 16; threads <<= 1) {
+            // 先跑一轮预热,结果丢掉
+            run(pc, threads, millis / 4);
+            long ops = run(pc, threads, millis);
+            System.out.printf("threads=%-3d %8d pages/ms%n", threads, ops / millis);
+        }
+        pc.close();
+        new File(path + ".db").delete();
+    }
+
+    private static long run(PageCache pc, int threads, long millis) throws Exception {
+        AtomicLong total = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(threads);
+        long deadline = System.currentTimeMillis() + millis;
+        for(int i = 0; i < threads; i ++) {
+            new Thread(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                long ops = 0;
+                try {
+                    start.await();
+                    while(System.currentTimeMillis() < deadline) {
+                        Page pg = pc.getPage(1 + random.nextInt(PAGES));
+                        pg.release();
+                        ops ++;
+                    }
+                } catch(Exception e) {
+                    e.printStackTrace();
+                }
+                total.addAndGet(ops);
+                done.countDown();
+            }).start();
+        }
+        start.countDown();
+        done.await();
+        return total.get();
+    }
+}
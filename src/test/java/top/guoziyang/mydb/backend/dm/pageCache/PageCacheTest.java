@@ -1,9 +1,13 @@
 package top.guoziyang.mydb.backend.dm.pageCache;
 
 import java.io.File;
+import java.io.RandomAccessFile;
 import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.Random;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
@@ -43,6 +47,260 @@ public class PageCacheTest {
         assert new File("/tmp/pcacher_simple_test0.db").delete();
     }
 
+    @Test
+    public void testPageCacheResident() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_resident_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 30; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        // 释放之后页面仍然常驻,再次获取得到的是同一个对象
+        Page pg = pc.getPage(1);
+        pg.getData()[0] = (byte)7;
+        pg.setDirty(true);
+        pg.release();
+        assert pc.getPage(1) == pg;
+        pg.release();
+
+        // 内存用满之后按CLOCK驱逐,被驱逐的脏页会写回
+        for(int i = 2; i <= 30; i ++) {
+            pc.getPage(i).release();
+        }
+        Page reloaded = pc.getPage(1);
+        assert reloaded != pg;
+        assert reloaded.getData()[0] == (byte)7;
+        reloaded.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_resident_test.db").delete();
+    }
+
+    @Test
+    public void testPageCacheDirect() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_direct_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_DIRECT);
+        for(int i = 0; i < 30; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            tmp[PageCache.PAGE_SIZE-1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 堆外页面的数据在帧里,读写都走getBuffer
+        Page pg = pc.getPage(1);
+        assert pg.getBuffer().isDirect();
+        pg.getBuffer().put(1, (byte)7);
+        pg.setDirty(true);
+        pg.release();
+
+        // 页面多于帧数,帧被反复复用,每次读到的都应该是各自页面的数据
+        for(int round = 0; round < 2; round ++) {
+            for(int i = 1; i <= 30; i ++) {
+                pg = pc.getPage(i);
+                assert pg.getBuffer().get(0) == (byte)(i-1);
+                assert pg.getBuffer().get(PageCache.PAGE_SIZE-1) == (byte)(i-1);
+                pg.release();
+            }
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_direct_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_DIRECT);
+        pg = pc.getPage(1);
+        assert pg.getBuffer().get(1) == (byte)7;
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_direct_test.db").delete();
+    }
+
+    @Test
+    public void testPageCacheMmap() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_MMAP);
+        for(int i = 0; i < 30; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+            // 每建一页就读一次,映射需要跟着文件增长
+            Page pg = pc.getPage(i+1);
+            assert pg.getData()[0] == (byte)i;
+            pg.getData()[1] = (byte)(i+1);
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_MMAP);
+        assert pc.getPageNumber() == 30;
+        for(int i = 1; i <= 30; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            assert pg.getData()[1] == (byte)i;
+            pg.release();
+        }
+        pc.close();
+
+        // 和恢复时一样,打开之后先截断,之后的新页面要重新映射
+        pc = PageCache.open("/tmp/pcacher_mmap_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_MMAP);
+        Page pg = pc.getPage(20);
+        pg.release();
+        pc.truncateByBgno(20);
+        byte[] tmp = new byte[PageCache.PAGE_SIZE];
+        tmp[0] = (byte)99;
+        assert pc.newPage(tmp) == 21;
+        pg = pc.getPage(21);
+        assert pg.getData()[0] == (byte)99;
+        pg.release();
+        pc.close();
+
+        assert new File("/tmp/pcacher_mmap_test.db").delete();
+    }
+
+    @Test
+    public void testPageCacheConcurrentMiss() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_miss_test", PageCache.PAGE_SIZE * 10);
+        for(int i = 0; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            tmp[PageCache.PAGE_SIZE-1] = (byte)i;
+            pc.newPage(tmp);
+        }
+        // 缓存只有10页,几乎每次getPage都要读文件,多个线程同时读不同的页面,读到的内容不能串
+        AtomicInteger errors = new AtomicInteger(0);
+        Thread[] threads = new Thread[8];
+        for(int t = 0; t < threads.length; t ++) {
+            threads[t] = new Thread(() -> {
+                Random r = new Random();
+                for(int i = 0; i < 500; i ++) {
+                    int pgno = r.nextInt(100) + 1;
+                    try {
+                        Page pg = pc.getPage(pgno);
+                        if(pg.getData()[0] != (byte)(pgno-1) || pg.getData()[PageCache.PAGE_SIZE-1] != (byte)(pgno-1)) {
+                            errors.incrementAndGet();
+                        }
+                        pg.release();
+                    } catch(Exception e) {
+                        // 所有页面都被占用时会缓存已满,重试即可
+                    }
+                }
+            });
+            threads[t].start();
+        }
+        for(Thread t : threads) {
+            t.join();
+        }
+        assert errors.get() == 0;
+        pc.close();
+
+        assert new File("/tmp/pcacher_miss_test.db").delete();
+    }
+
+    @Test
+    public void testPageCacheWriteBack() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_writeback_test", PageCache.PAGE_SIZE * 10, PageCache.MODE_HEAP | PageCache.WRITE_BACK);
+        for(int i = 0; i < 5; i ++) {
+            pc.newPage(new byte[PageCache.PAGE_SIZE]);
+        }
+        Page pg = pc.getPage(3);
+        pg.getData()[0] = (byte)3;
+        pg.setDirty(true);
+        pg.release();
+
+        // 脏页留在缓存里,由后台线程写回
+        RandomAccessFile raf = new RandomAccessFile("/tmp/pcacher_writeback_test.db", "r");
+        long deadline = System.currentTimeMillis() + 5000;
+        while(readByte(raf, 3) != 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assert readByte(raf, 3) == 3;
+        assert !pg.isDirty();
+
+        // sync立刻写回所有无人引用的脏页,被引用的页面不动
+        Page pinned = pc.getPage(4);
+        pinned.getData()[0] = (byte)4;
+        pinned.setDirty(true);
+        pg = pc.getPage(5);
+        pg.getData()[0] = (byte)5;
+        pg.setDirty(true);
+        pg.release();
+        pc.sync();
+        assert readByte(raf, 5) == 5;
+        assert readByte(raf, 4) == 0;
+        pinned.release();
+        pc.close();
+        assert readByte(raf, 4) == 4;
+        raf.close();
+
+        assert new File("/tmp/pcacher_writeback_test.db").delete();
+    }
+
+    @Test
+    public void testPageCachePrefetch() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0; i < 100; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        pc.close();
+
+        pc = PageCache.open("/tmp/pcacher_prefetch_test", PageCache.PAGE_SIZE * 50);
+        // 预读不引用页面,超出范围的页号直接忽略
+        pc.prefetch(1, 2, 3, 0, 1000);
+        List<CompletableFuture<Page>> futures = new ArrayList<>();
+        for(int i = 1; i <= 20; i ++) {
+            futures.add(pc.getPageAsync(i));
+        }
+        for(int i = 1; i <= 20; i ++) {
+            Page pg = futures.get(i-1).get();
+            assert pg.getPageNumber() == i;
+            assert pg.getData()[0] == (byte)(i-1);
+            pg.release();
+        }
+        // 顺序扫描会触发预读,结果和逐页读取一样
+        for(int i = 21; i <= 100; i ++) {
+            Page pg = pc.getPage(i);
+            assert pg.getData()[0] == (byte)(i-1);
+            pg.release();
+        }
+        pc.close();
+
+        assert new File("/tmp/pcacher_prefetch_test.db").delete();
+    }
+
+    // 截断之后缓存里不能留下截掉的页面,否则重新分配的页号会读到旧数据,脏页还会被写到文件末尾之外
+    @Test
+    public void testPageCacheTruncate() throws Exception {
+        PageCache pc = PageCache.create("/tmp/pcacher_truncate_test", PageCache.PAGE_SIZE * 50);
+        for(int i = 0; i < 20; i ++) {
+            byte[] tmp = new byte[PageCache.PAGE_SIZE];
+            tmp[0] = (byte)i;
+            pc.newPage(tmp);
+        }
+        for(int i = 1; i <= 20; i ++) {
+            Page pg = pc.getPage(i);
+            pg.getData()[1] = (byte)1;
+            pg.setDirty(true);
+            pg.release();
+        }
+        pc.truncateByBgno(10);
+        assert pc.getPageNumber() == 10;
+
+        byte[] tmp = new byte[PageCache.PAGE_SIZE];
+        tmp[0] = (byte)100;
+        assert pc.newPage(tmp) == 11;
+        Page pg = pc.getPage(11);
+        assert pg.getData()[0] == (byte)100;
+        assert pg.getData()[1] == (byte)0;
+        pg.release();
+        pc.close();
+
+        File f = new File("/tmp/pcacher_truncate_test.db");
+        assert f.length() == 11L * PageCache.PAGE_SIZE;
+        assert f.delete();
+    }
+
+    private static byte readByte(RandomAccessFile raf, int pgno) throws Exception {
+        raf.seek((long)(pgno-1) * PageCache.PAGE_SIZE);
+        return raf.readByte();
+    }
+
     private PageCache pc1;
     private CountDownLatch cdl1;
     private AtomicInteger noPages1;
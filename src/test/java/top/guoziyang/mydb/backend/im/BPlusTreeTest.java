@@ -6,6 +6,7 @@ import java.util.List;
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.dm.pageCache.PageCache;
 import top.guoziyang.mydb.backend.tm.MockTransactionManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
@@ -31,6 +32,39 @@ public class BPlusTreeTest {
         }
 
         assert new File("/tmp/TestTreeSingle.db").delete();
-        assert new File("/tmp/TestTreeSingle.log").delete();
+        assert Logger.remove("/tmp/TestTreeSingle");
+    }
+
+    @Test
+    public void testTreeRecovery() throws Exception {
+        String path = "/tmp/TestTreeRecovery";
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, PageCache.PAGE_SIZE*10, tm);
+
+        long root = BPlusTree.create(dm);
+        BPlusTree tree = BPlusTree.load(root, dm);
+
+        // 乱序插入,key会插到节点中间;缓存很小,一部分页面在崩溃前已经写回,恢复时要跳过已经在页面里的日志
+        int lim = 5000;
+        for(int i = 0; i < lim; i ++) {
+            long key = (i * 7919L) % lim;
+            tree.insert(key, key);
+        }
+        long xid = tm.begin();
+        dm.commit(xid);
+
+        // 不close,模拟崩溃
+        DataManager dm1 = DataManager.open(path, PageCache.PAGE_SIZE*10, tm);
+        BPlusTree tree1 = BPlusTree.load(root, dm1);
+        for(int i = 0; i < lim; i ++) {
+            List<Long> uids = tree1.search(i);
+            assert uids.size() == 1;
+            assert uids.get(0) == i;
+        }
+        dm1.close();
+
+        assert new File(path + ".db").delete();
+        assert Logger.remove(path);
+        assert new File(path + ".xid").delete();
     }
 }
@@ -45,6 +45,31 @@ public class ParserTest {
         res = Parser.Parse(stat.getBytes());
         begin = (Begin)res;
         assert begin.isRepeatableRead;
+        assert !begin.isReadOnly;
+
+        stat = "begin read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert !begin.isRepeatableRead;
+        assert begin.isReadOnly;
+
+        stat = "begin isolation level repeatable read read only";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isRepeatableRead;
+        assert begin.isReadOnly;
+
+        stat = "begin isolation level read committed async commit";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert !begin.isRepeatableRead;
+        assert begin.isAsyncCommit;
+
+        stat = "begin async commit";
+        res = Parser.Parse(stat.getBytes());
+        begin = (Begin)res;
+        assert begin.isAsyncCommit;
+        assert !begin.isReadOnly;
     }
 
     @Test
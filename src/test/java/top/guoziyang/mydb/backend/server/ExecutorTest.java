@@ -6,9 +6,12 @@ import java.util.concurrent.CountDownLatch;
 import org.junit.Test;
 
 import top.guoziyang.mydb.backend.dm.DataManager;
+import top.guoziyang.mydb.backend.dm.dataItem.DataItem;
+import top.guoziyang.mydb.backend.dm.logger.Logger;
 import top.guoziyang.mydb.backend.tbm.TableManager;
 import top.guoziyang.mydb.backend.tm.TransactionManager;
 import top.guoziyang.mydb.backend.vm.VersionManager;
+import top.guoziyang.mydb.common.Error;
 
 public class ExecutorTest {
     String path = "/tmp/mydb";
@@ -40,7 +43,7 @@ public class ExecutorTest {
         testInsert(exe, 10000, 1);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 
@@ -72,7 +75,116 @@ public class ExecutorTest {
         testMultiInsert(10000, 4);
         new File(path + ".db").delete();
         new File(path + ".bt").delete();
-        new File(path + ".log").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 单独的select和begin read only都不分配xid,只读事务里不能写
+    @Test
+    public void testReadOnly() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        DataManager dm = DataManager.create(path, mem, tm);
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+        exe.execute(CREATE_TABLE);
+        exe.execute(INSERT);
+
+        long next = tm.nextXid();
+        String res = new String(exe.execute("select * from test_table where id = 2333".getBytes()));
+        assert res.contains("2333");
+        exe.execute("begin read only".getBytes());
+        exe.execute("select * from test_table where id = 2333".getBytes());
+        try {
+            exe.execute(INSERT);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.ReadOnlyTransactionException;
+        }
+        exe.execute("commit".getBytes());
+        assert tm.nextXid() == next;
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
+        new File(path + ".xid").delete();
+    }
+
+    // 记录insert次数的DM,用来确认只读事务的写操作没有碰到DM
+    static class CountingDataManager implements DataManager {
+        DataManager dm;
+        int inserts;
+
+        CountingDataManager(DataManager dm) {
+            this.dm = dm;
+        }
+
+        @Override
+        public DataItem read(long uid) throws Exception {
+            return dm.read(uid);
+        }
+        @Override
+        public long insert(long xid, byte[] data) throws Exception {
+            inserts ++;
+            return dm.insert(xid, data);
+        }
+        @Override
+        public void commit(long xid) {
+            dm.commit(xid);
+        }
+        @Override
+        public void commitAsync(long xid) {
+            dm.commitAsync(xid);
+        }
+        @Override
+        public void setAsyncCommitDelay(long millis) {
+            dm.setAsyncCommitDelay(millis);
+        }
+        @Override
+        public void abort(long xid) {
+            dm.abort(xid);
+        }
+        @Override
+        public void close() {
+            dm.close();
+        }
+    }
+
+    // 只读事务里建表要在写任何数据之前被拒绝,表也不会留下
+    @Test
+    public void testReadOnlyCreate() throws Exception {
+        TransactionManager tm = TransactionManager.create(path);
+        CountingDataManager dm = new CountingDataManager(DataManager.create(path, mem, tm));
+        VersionManager vm = VersionManager.newVersionManager(tm, dm);
+        TableManager tbm = TableManager.create(path, vm, dm);
+        Executor exe = new Executor(tbm);
+
+        long next = tm.nextXid();
+        int inserts = dm.inserts;
+        exe.execute("begin read only".getBytes());
+        try {
+            exe.execute(CREATE_TABLE);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.ReadOnlyTransactionException;
+        }
+        assert dm.inserts == inserts;
+        exe.execute("commit".getBytes());
+        assert tm.nextXid() == next;
+        try {
+            exe.execute(INSERT);
+            assert false;
+        } catch(Exception e) {
+            assert e == Error.TableNotFoundException;
+        }
+
+        dm.close();
+        tm.close();
+        new File(path + ".db").delete();
+        new File(path + ".bt").delete();
+        Logger.remove(path);
         new File(path + ".xid").delete();
     }
 }
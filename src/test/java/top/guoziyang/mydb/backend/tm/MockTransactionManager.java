@@ -28,6 +28,14 @@ public class MockTransactionManager implements TransactionManager {
         return false;
     }
 
+    @Override
+    public void sync() {}
+
+    @Override
+    public long nextXid() {
+        return 0;
+    }
+
     @Override
     public void close() {}
     
@@ -92,4 +92,51 @@ public class TransactionManagerTest {
         }
         cdl.countDown();
     }
+
+    // 重新打开后,状态表从XID文件读入,跨越多个状态字
+    @Test
+    public void testReopen() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_reopen_test");
+        int n = 1000;
+        for(int i = 1; i <= n; i ++) {
+            long xid = tm.begin();
+            assert xid == i;
+            if(i % 3 == 1) {
+                tm.commit(xid);
+            } else if(i % 3 == 2) {
+                tm.abort(xid);
+            }
+        }
+        tm.close();
+
+        tm = TransactionManager.open("/tmp/tranmger_reopen_test");
+        for(int i = 1; i <= n; i ++) {
+            assert tm.isCommitted(i) == (i % 3 == 1);
+            assert tm.isAborted(i) == (i % 3 == 2);
+            assert tm.isActive(i) == (i % 3 == 0);
+        }
+        assert tm.begin() == n + 1;
+        tm.close();
+        assert new File("/tmp/tranmger_reopen_test.xid").delete();
+    }
+
+    // 没有正常关闭时,预分配区间里没用到的xid被跳过,已提交和回滚的状态都已落盘
+    @Test
+    public void testReopenWithoutClose() {
+        TransactionManager tm = TransactionManager.create("/tmp/tranmger_crash_test");
+        long x1 = tm.begin(), x2 = tm.begin(), x3 = tm.begin();
+        tm.commit(x1);
+        tm.abort(x2);
+
+        TransactionManager tm1 = TransactionManager.open("/tmp/tranmger_crash_test");
+        assert tm1.isCommitted(x1);
+        assert tm1.isAborted(x2);
+        assert tm1.isActive(x3);
+        long x4 = tm1.begin();
+        assert x4 > x3;
+        assert tm1.isActive(x4 - 1);
+        tm1.close();
+        tm.close();
+        assert new File("/tmp/tranmger_crash_test.xid").delete();
+    }
 }
@@ -0,0 +1,43 @@
+package top.guoziyang.mydb.backend.vm;
+
+import org.junit.Test;
+
+import top.guoziyang.mydb.backend.common.LongList;
+
+public class TransactionTest {
+
+    // 快照是活跃事务的升序数组,[xmin, horizon)之外直接排除
+    @Test
+    public void testSnapshot() {
+        LongList active = new LongList();
+        active.add(3);
+        active.add(5);
+        active.add(9);
+        Transaction t = Transaction.newTransaction(10, 1, active);
+        assert t.xmin == 3;
+        assert t.isInSnapshot(3);
+        assert t.isInSnapshot(5);
+        assert t.isInSnapshot(9);
+        assert !t.isInSnapshot(0);
+        assert !t.isInSnapshot(2);
+        assert !t.isInSnapshot(4);
+        assert !t.isInSnapshot(10);
+        assert !t.isInSnapshot(11);
+
+        // 之后活跃事务列表的变化不影响已经拿到的快照
+        active.removeAt(active.binarySearch(5));
+        active.add(10);
+        assert t.isInSnapshot(5);
+        assert !t.isInSnapshot(10);
+
+        // 只读事务以开始时下一个要分配的xid为上界
+        Transaction ro = Transaction.newReadOnlyTransaction(-1, 1, 11, active);
+        assert ro.isInSnapshot(10);
+        assert !ro.isInSnapshot(5);
+        assert !ro.isInSnapshot(11);
+
+        Transaction empty = Transaction.newTransaction(12, 1, new LongList());
+        assert empty.xmin == 12;
+        assert !empty.isInSnapshot(11);
+    }
+}